@@ -0,0 +1,346 @@
+package com.simopr.smscompress.algorithms;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Adaptive Huffman codes (FGK algorithm), see Compression.FORMAT_ADAPTIVE.
+ *
+ * No trie is sent: both sides start with an empty tree holding only the
+ * NYT node (not yet transmitted) and update it the same way after each
+ * character. A character seen for the first time is sent as the code of
+ * the NYT node followed by its 8 bits, the next times as the code of its
+ * leaf. Short messages save the trie but pay about the same price on the
+ * first occurrence of each character, so the adaptive codes are smaller
+ * than the trie for short messages with few repetitions.
+ *
+ * The tree keeps the sibling property: the nodes are numbered, the root has
+ * the highest number, the two children of a node have consecutive numbers,
+ * and the weights never decrease with the numbers. A node is stored at the
+ * index of its number, so swapping two nodes of the same weight is swapping
+ * the content of two slots.
+ *
+ * The tree needs parents and nodes that move, so it is not built with Node
+ * (see Btree) but in arrays reused for each message. A tree is not thread
+ * safe: each HuffmanCodec has its own (see HuffmanCodec.getAdaptive()).
+ */
+public class AdaptiveHuffman {
+
+    // number of nodes of a tree with 256 leaves and the NYT node
+    private static final int NODES = 2 * 256 + 1;
+
+    // number of the root
+    static final int ROOT = NODES - 1;
+
+    // weight of the node at each number
+    private final int[] weight = new int[NODES];
+    // parent of the node at each number (-1 for the root)
+    private final int[] parent = new int[NODES];
+    // left child of the internal node at each number (-1 for a leaf), the right child is the next number
+    private final int[] left = new int[NODES];
+    // character of the leaf at each number
+    private final int[] symbol = new int[NODES];
+    // number of the leaf of each character (-1 when not yet transmitted)
+    private final int[] leaf = new int[256];
+
+    // number of the NYT node
+    private int nyt;
+
+    // length of the last code given by code()
+    private int codeLength;
+
+    public AdaptiveHuffman() {
+        this.reset();
+    }
+
+    /**
+     * Start again with the empty tree
+     */
+    public void reset() {
+        Arrays.fill(this.leaf, -1);
+        this.nyt = ROOT;
+        this.weight[ROOT] = 0;
+        this.parent[ROOT] = -1;
+        this.left[ROOT] = -1;
+    }
+
+    /**
+     * Add the codes of the bytes of a message to a stream
+     *
+     * @param msg the bytes of the message
+     * @param offset first byte to encode
+     * @param length number of bytes to encode
+     * @param out where the codes are written
+     */
+    public void encode(byte[] msg, int offset, int length, Stream out) {
+        this.reset();
+        for (int i = offset; i < offset + length; i++) {
+            int c = msg[i] & 0xFF;
+            boolean isNew = this.isNew(c);
+            out.addBits(this.code(c), this.codeLength);
+            if (isNew) out.addBits(c, 8);
+            this.update(c);
+        }
+    }
+
+    /**
+     * Decode all the remaining bits of the reader
+     *
+     * @param reader cursor on the first code
+     * @param decompressedMsg where the decoded bytes are added
+     */
+    public void decode(BitReader reader, Stream decompressedMsg) {
+        this.reset();
+        while (reader.remaining() > 0) {
+            int c = this.tryDecodeSymbol(reader);
+            if (c < 0) throw new NullPointerException();
+            decompressedMsg.addBits(c, 8);
+        }
+    }
+
+    /**
+     * Decode the next character and update the tree
+     *
+     * @param reader cursor on a code
+     * @return the character, -1 if the code is cut by the end of the reader
+     * or if a character already in the tree is sent again as new
+     */
+    int tryDecodeSymbol(BitReader reader) {
+        int node = ROOT;
+        while (!this.isLeaf(node)) {
+            if (reader.remaining() == 0) return -1;
+            node = this.child(node, reader.readBit() ? 1 : 0);
+        }
+
+        int c = this.symbol(node);
+        if (c < 0) {
+            if (reader.remaining() < 8) return -1;
+            c = reader.readBits(8);
+            // the encoder never sends again a character already in the tree
+            if (!this.isNew(c)) return -1;
+        }
+        this.update(c);
+        return c;
+    }
+
+    /**
+     * @param c a character
+     * @return true if c is not in the tree yet (it is sent after the NYT code)
+     */
+    boolean isNew(int c) {
+        return this.leaf[c] < 0;
+    }
+
+    /**
+     * The code of a character, before the tree is updated: the path from the
+     * root to its leaf, or to the NYT node for a new character (0 for a left
+     * child, 1 for a right child)
+     *
+     * @param c a character
+     * @return the code, right aligned on codeLength() bits
+     */
+    long code(int c) {
+        int node = this.isNew(c) ? this.nyt : this.leaf[c];
+        long code = 0;
+        int length = 0;
+        // the bits are collected from the leaf, the last one is the root's child
+        for (int n = node; n != ROOT; n = this.parent[n]) {
+            if (this.left[this.parent[n]] != n) code |= 1L << length;
+            length++;
+        }
+        // the weights are Huffman weights: a code is never longer than a canonical one
+        if (length > CanonicalCode.MAX_LENGTH) throw new NullPointerException();
+        this.codeLength = length;
+        return code;
+    }
+
+    /**
+     * @return the number of bits of the last code given by code()
+     */
+    int codeLength() {
+        return this.codeLength;
+    }
+
+    /**
+     * @param node number of a node
+     * @return true if the node is a leaf (a character or the NYT node)
+     */
+    boolean isLeaf(int node) {
+        return this.left[node] < 0;
+    }
+
+    /**
+     * @param node number of an internal node
+     * @param bit 0 for the left child, 1 for the right child
+     * @return the number of the child
+     */
+    int child(int node, int bit) {
+        return this.left[node] + bit;
+    }
+
+    /**
+     * @param node number of a leaf
+     * @return the character of the leaf, -1 for the NYT node
+     */
+    int symbol(int node) {
+        return node == this.nyt ? -1 : this.symbol[node];
+    }
+
+    /**
+     * Add one to the weight of a character, moving the nodes to keep the
+     * sibling property
+     */
+    void update(int c) {
+        int node = this.leaf[c];
+        if (node < 0) {
+            // the NYT node gets two children: the new NYT and the new leaf
+            int internal = this.nyt;
+            int newLeaf = internal - 1;
+            int newNyt = internal - 2;
+            this.left[internal] = newNyt;
+
+            this.weight[newLeaf] = 0;
+            this.parent[newLeaf] = internal;
+            this.left[newLeaf] = -1;
+            this.symbol[newLeaf] = c;
+            this.leaf[c] = newLeaf;
+
+            this.weight[newNyt] = 0;
+            this.parent[newNyt] = internal;
+            this.left[newNyt] = -1;
+            this.nyt = newNyt;
+            node = newLeaf;
+        }
+
+        while (node != ROOT) {
+            // the highest number with the same weight
+            int leader = node;
+            while (leader < ROOT && this.weight[leader + 1] == this.weight[node])
+                leader++;
+            if (leader != node && leader != this.parent[node]) {
+                this.swap(node, leader);
+                node = leader;
+            }
+            this.weight[node]++;
+            node = this.parent[node];
+        }
+        this.weight[ROOT]++;
+    }
+
+    /**
+     * Swap the subtrees at the numbers a and b: the slots keep their parent,
+     * their contents are exchanged
+     */
+    private void swap(int a, int b) {
+        int w = this.weight[a];
+        this.weight[a] = this.weight[b];
+        this.weight[b] = w;
+        int l = this.left[a];
+        this.left[a] = this.left[b];
+        this.left[b] = l;
+        int s = this.symbol[a];
+        this.symbol[a] = this.symbol[b];
+        this.symbol[b] = s;
+        this.attach(a);
+        this.attach(b);
+    }
+
+    /**
+     * Point the children (or the character) of a slot back to it
+     */
+    private void attach(int node) {
+        if (this.left[node] < 0) {
+            this.leaf[this.symbol[node]] = node;
+        } else {
+            this.parent[this.left[node]] = node;
+            this.parent[this.left[node] + 1] = node;
+        }
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     */
+    public static void main(String[] args) {
+
+        // every message comes back
+        Random random = new Random(5);
+        AdaptiveHuffman encoder = new AdaptiveHuffman();
+        AdaptiveHuffman decoder = new AdaptiveHuffman();
+        for (int testCases = 0; testCases < 5000; testCases++) {
+            byte[] msg = new byte[1 + random.nextInt(testCases % 10 == 0 ? 3000 : 200)];
+            int alphabet = 1 + random.nextInt(256);
+            for (int i = 0; i < msg.length; i++)
+                msg[i] = (byte) (random.nextInt(alphabet) * random.nextInt(alphabet) / alphabet);
+
+            Stream codes = new Stream();
+            encoder.encode(msg, 0, msg.length, codes);
+
+            Stream decoded = new Stream();
+            decoder.decode(new BitReader(codes), decoded);
+            assert(Arrays.equals(decoded.getBytesWithoutLastPaddingByte(), msg));
+        }
+
+        // all the 256 characters, the tree gets deep
+        byte[] all = new byte[4096];
+        for (int i = 0; i < all.length; i++)
+            all[i] = (byte) (i < 256 ? i : (i * i) >> 4);
+        Stream codes = new Stream();
+        encoder.encode(all, 0, all.length, codes);
+        Stream decoded = new Stream();
+        decoder.decode(new BitReader(codes), decoded);
+        assert(Arrays.equals(decoded.getBytesWithoutLastPaddingByte(), all));
+
+        // a code cut by the end, a character sent twice as new
+        Stream cut = new Stream();
+        cut.addBits(new BitReader(codes).readBits(5), 5);
+        decoder.reset();
+        assert(decoder.tryDecodeSymbol(new BitReader(cut)) == -1);
+        Stream twice = new Stream();
+        twice.addBits('a', 8);
+        twice.addBits(0, 1);
+        twice.addBits('a', 8);
+        BitReader reader = new BitReader(twice);
+        decoder.reset();
+        assert(decoder.tryDecodeSymbol(reader) == 'a');
+        assert(decoder.tryDecodeSymbol(reader) == -1);
+
+        // wire size against the format sending a trie, on 20-80 bytes SMS
+        // (the latency is measured by the AdaptiveBenchmark of the benchmarks project)
+        String[] messages = {
+                "Votre code est 482913",
+                "RDV demain 10h30 a la gare, appelle-moi si retard",
+                "Bonjour, votre colis 7741 sera livre demain entre 9h et 12h. Merci",
+                "Rappel: votre facture de 42,90 EUR est disponible dans votre espace client.",
+                "Hi! Running late, be there in 15 min. Order me a coffee please :)"
+        };
+        for (String message : messages) {
+            Stream trie = Compression.compress(new Stream(message), Compression.FORMAT_TRIE);
+            Stream adaptive = Compression.compress(new Stream(message), Compression.FORMAT_ADAPTIVE);
+            assert(Compression.decompress(adaptive).equals(new Stream(message)));
+            System.out.println(message.length() + " bytes: trie " + trie.numberOfBits() + " bits, adaptive "
+                    + adaptive.numberOfBits() + " bits");
+            assert(adaptive.numberOfBits() < trie.numberOfBits());
+        }
+
+        // random SMS of 20-80 bytes: the adaptive codes are smaller than the trie
+        String letters = "aaaaaeeeeiioouu bcdfghlmnprst.,0123456789";
+        long trieBits = 0;
+        long adaptiveBits = 0;
+        int smaller = 0;
+        for (int testCases = 0; testCases < 2000; testCases++) {
+            StringBuilder sms = new StringBuilder();
+            int length = 20 + random.nextInt(61);
+            for (int i = 0; i < length; i++)
+                sms.append(letters.charAt(random.nextInt(letters.length())));
+            int trie = Compression.compress(new Stream(sms.toString()), Compression.FORMAT_TRIE).numberOfBits();
+            int adaptive = Compression.compress(new Stream(sms.toString()), Compression.FORMAT_ADAPTIVE).numberOfBits();
+            trieBits += trie;
+            adaptiveBits += adaptive;
+            if (adaptive < trie) smaller++;
+        }
+        System.out.println("20-80 bytes SMS: trie " + trieBits / 2000 + " bits, adaptive " + adaptiveBits / 2000
+                + " bits on average, adaptive smaller on " + smaller + " of 2000");
+        assert(adaptiveBits < trieBits);
+    }
+}
@@ -0,0 +1,293 @@
+package com.simopr.smscompress.algorithms;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compress or decompress the records of an archive file, reading and writing
+ * the files through memory-mapped buffers.
+ *
+ * An archive is a flat file of records:
+ *      number of bytes of the record   (int, big endian)
+ *      bytes of the record             (variable)
+ *
+ * The records of a compressed archive are the bytes given by Stream.getBytes()
+ * (the last byte holds the padding limit). They are decoded straight from the
+ * mapped file, without copying them in an array or in a Stream first.
+ *
+ * The file is mapped by windows of at most WINDOW_SIZE bytes ending on a
+ * record, and the records of a window are split in regions (de)compressed
+ * by the workers of a fork-join pool. The results of a window are then
+ * written at their place in the mapped output file, in parallel too.
+ */
+public class ArchiveCompression {
+
+    // biggest part of the input mapped at once (a record must fit in it)
+    public static final int WINDOW_SIZE = 1 << 26;
+
+    // number of bytes of the length before each record
+    private static final int RECORD_HEADER = 4;
+
+    // number of records handled by a task without splitting it
+    private static final int REGION_SIZE = 64;
+
+    /**
+     * Compress each record of an archive of messages into a new archive
+     *
+     * @param messages archive of the messages
+     * @param archive archive of the compressed messages (replaced if it exists)
+     * @param format format of the compressed messages (see Compression.compress)
+     * @param pool the workers compressing the records
+     * @return number of records
+     * @throws IOException if a file cannot be read or written, or if a record is wrong
+     */
+    public static long compressFile(Path messages, Path archive, int format, ForkJoinPool pool) throws IOException {
+        if (format != Compression.FORMAT_TRIE && format != Compression.FORMAT_CANONICAL
+                && format != Compression.FORMAT_STATIC && format != Compression.FORMAT_ADAPTIVE)
+            throw new IllegalArgumentException();
+        return ArchiveCompression.process(messages, archive, format, pool);
+    }
+
+    /**
+     * Decompress each record of an archive of compressed messages into a new archive
+     *
+     * @param archive archive of the compressed messages
+     * @param messages archive of the messages (replaced if it exists)
+     * @param pool the workers decompressing the records
+     * @return number of records
+     * @throws IOException if a file cannot be read or written, or if a record is wrong
+     */
+    public static long decompressFile(Path archive, Path messages, ForkJoinPool pool) throws IOException {
+        return ArchiveCompression.process(archive, messages, -1, pool);
+    }
+
+    /**
+     * Helper function for compressFile and decompressFile
+     *
+     * @param format format of the compressed messages, -1 to decompress
+     */
+    private static long process(Path input, Path output, int format, ForkJoinPool pool) throws IOException {
+        if (pool == null) throw new NullPointerException();
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            long size = in.size();
+            long inputPosition = 0;
+            long outputPosition = 0;
+            long records = 0;
+            int[] offsets = new int[1024];
+
+            while (inputPosition < size) {
+                int windowSize = (int) Math.min(WINDOW_SIZE, size - inputPosition);
+                MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, inputPosition, windowSize);
+
+                // offsets of the records that end in the window
+                int count = 0;
+                int offset = 0;
+                while (offset + RECORD_HEADER <= windowSize) {
+                    int length = window.getInt(offset);
+                    if (length < 1) throw new IOException("wrong record length at " + (inputPosition + offset));
+                    if ((long) offset + RECORD_HEADER + length > windowSize) break;
+                    if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+                    offsets[count++] = offset;
+                    offset += RECORD_HEADER + length;
+                }
+                if (count == 0) throw new IOException("truncated or too big record at " + inputPosition);
+
+                // (de)compress the records of the window
+                Stream[] results = new Stream[count];
+                try {
+                    pool.invoke(new RecordTask(window, offsets, results, 0, count, format));
+                } catch (IllegalStateException e) {
+                    throw new IOException(e.getMessage() + " in the window at " + inputPosition);
+                }
+
+                // place of each result in the output
+                int[] positions = new int[count];
+                long total = 0;
+                for (int i = 0; i < count; i++) {
+                    if (total > Integer.MAX_VALUE) throw new IOException("output window too big");
+                    positions[i] = (int) total;
+                    total += RECORD_HEADER + resultLength(results[i], format);
+                }
+                if (total > Integer.MAX_VALUE) throw new IOException("output window too big");
+
+                MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE, outputPosition, total);
+                pool.invoke(new WriteTask(target, positions, results, 0, count, format));
+
+                inputPosition += offset;
+                outputPosition += total;
+                records += count;
+            }
+
+            // the mapping may have grown the file beyond the last window
+            out.truncate(outputPosition);
+            return records;
+        }
+    }
+
+    /**
+     * number of bytes written for a result: the whole bytes of a message,
+     * or the bytes with the padding limit of a compressed message
+     */
+    private static int resultLength(Stream result, int format) {
+        return format < 0 ? result.numberOfBits() / 8 : result.size();
+    }
+
+    /**
+     * (De)compress the records from start to end of a window
+     */
+    private static class RecordTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer window;
+        private final int[] offsets;
+        private final Stream[] results;
+        private final int start;
+        private final int end;
+        private final int format;
+
+        RecordTask(ByteBuffer window, int[] offsets, Stream[] results, int start, int end, int format) {
+            this.window = window;
+            this.offsets = offsets;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+            this.format = format;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start > REGION_SIZE) {
+                int middle = (this.start + this.end) >>> 1;
+                invokeAll(new RecordTask(this.window, this.offsets, this.results, this.start, middle, this.format),
+                        new RecordTask(this.window, this.offsets, this.results, middle, this.end, this.format));
+                return;
+            }
+
+            int[] histogram = new int[Compression.HISTOGRAM_SIZE];
+            for (int i = this.start; i < this.end; i++) {
+                int offset = this.offsets[i];
+                int length = this.window.getInt(offset);
+                int first = offset + RECORD_HEADER;
+
+                Stream result;
+                if (this.format < 0) {
+                    // the bits of the record before the padding limit
+                    int last = first + length - 1;
+                    int numberOfBits = (length - 1) * 8 + Stream.getPaddingPosition(this.window.get(last));
+                    result = Compression.decompress(new BitReader(this.window, first * 8, numberOfBits));
+                    if (result == null) throw new IllegalStateException("wrong compressed record " + i);
+                } else {
+                    byte[] message = new byte[length];
+                    ByteBuffer view = this.window.duplicate();
+                    view.position(first);
+                    view.get(message);
+                    Compression.getHistogram(message, 0, length, histogram);
+                    result = Compression.compress(message, histogram, this.format, Compression.MAX_CODE_LENGTH);
+                }
+                this.results[i] = result;
+            }
+        }
+    }
+
+    /**
+     * Write the results from start to end at their place in the output
+     */
+    private static class WriteTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer target;
+        private final int[] positions;
+        private final Stream[] results;
+        private final int start;
+        private final int end;
+        private final int format;
+
+        WriteTask(ByteBuffer target, int[] positions, Stream[] results, int start, int end, int format) {
+            this.target = target;
+            this.positions = positions;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+            this.format = format;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start > REGION_SIZE) {
+                int middle = (this.start + this.end) >>> 1;
+                invokeAll(new WriteTask(this.target, this.positions, this.results, this.start, middle, this.format),
+                        new WriteTask(this.target, this.positions, this.results, middle, this.end, this.format));
+                return;
+            }
+
+            // each task moves its own view of the buffer
+            ByteBuffer view = this.target.duplicate();
+            for (int i = this.start; i < this.end; i++) {
+                int length = resultLength(this.results[i], this.format);
+                view.position(this.positions[i]);
+                view.putInt(length);
+                view.put(this.results[i].buffer(), 0, length);
+            }
+        }
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     * @throws IOException if the temporary files cannot be used
+     */
+    public static void main(String[] args) throws IOException {
+
+        Path messages = Files.createTempFile("messages", ".archive");
+        Path compressed = Files.createTempFile("compressed", ".archive");
+        Path decompressed = Files.createTempFile("decompressed", ".archive");
+        try {
+            // an archive of random messages
+            java.io.ByteArrayOutputStream raw = new java.io.ByteArrayOutputStream();
+            java.io.DataOutputStream records = new java.io.DataOutputStream(raw);
+            int count = 50000;
+            for (int i = 0; i < count; i++) {
+                StringBuilder sms = new StringBuilder();
+                int length = 1 + (int) (Math.random() * 160);
+                for (int j = 0; j < length; j++)
+                    sms.append((char) ('a' + (int) (Math.random() * 26)));
+                byte[] bytes = sms.toString().getBytes();
+                records.writeInt(bytes.length);
+                records.write(bytes);
+            }
+            Files.write(messages, raw.toByteArray());
+
+            for (int format = Compression.FORMAT_TRIE; format <= Compression.FORMAT_ADAPTIVE; format++) {
+                long begin = System.nanoTime();
+                assert(compressFile(messages, compressed, format, ForkJoinPool.commonPool()) == count);
+                long compressTime = System.nanoTime() - begin;
+
+                begin = System.nanoTime();
+                assert(decompressFile(compressed, decompressed, ForkJoinPool.commonPool()) == count);
+                long decompressTime = System.nanoTime() - begin;
+
+                assert(Arrays.equals(Files.readAllBytes(messages), Files.readAllBytes(decompressed)));
+                System.out.println("format " + format + ": " + Files.size(messages) + " -> " + Files.size(compressed)
+                        + " bytes, compress " + compressTime / 1000000 + "ms, decompress " + decompressTime / 1000000 + "ms");
+            }
+        } finally {
+            Files.deleteIfExists(messages);
+            Files.deleteIfExists(compressed);
+            Files.deleteIfExists(decompressed);
+        }
+    }
+}
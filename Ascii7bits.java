@@ -1,280 +1,64 @@
 package com.simopr.smscompress.algorithms;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 public class Ascii7bits {
 
-    private HashMap<String, Character> gsmCodes;
-    private HashMap<Character, String> gsmCodesReversed;
-
     //https://en.wikipedia.org/wiki/GSM_03.38
     //Bug Solution: Sony phones treat \r as \n so remove \r and replace it with: { (14bits)
     //Bug Solution: Euro character(14bits) is used to represent ESC(7bits) character. Because
     //only {}[]^€|~\ extension chars of ASCII 7bits are allowed after ESC if it is not one of these
     //Android will not send the SMS an create a failed result
 
+    // character of each 7 bits code: the character of 0b0001100 is CHARACTERS[12] = 'A'
+    // '{' replaces CR (\r) and '€' replaces ESC
+    private static final char[] CHARACTERS = ("{Δ 0¡P¿p£_!1AQaq"
+            + "$Φ\"2BRbr¥Γ#3CScs"
+            + "èΛ¤4DTdtéΩ%5EUeu"
+            + "ùΠ&6FVfvìΨ'7GWgw"
+            + "òΣ(8HXhxÇΘ)9IYiy"
+            + "Ξ*:JZjzØ+;KÄkäøÆ"
+            + ",<LÖlöæ-=MÑmñÅß."
+            + ">NÜnüåÉ/?O§oà@\n€").toCharArray();
+
+    // 7 bits code of each character (indexed by the char), -1 if the character has no code
+    private static final byte[] CODES;
+
+    static {
+        char last = 0;
+        for (char c : CHARACTERS)
+            if (c > last) last = c;
+
+        CODES = new byte[last + 1];
+        Arrays.fill(CODES, (byte) -1);
+        for (int code = 0; code < CHARACTERS.length; code++)
+            CODES[CHARACTERS[code]] = (byte) code;
+    }
+
+    /**
+     * The tables are shared by all the instances, nothing is built here
+     */
     public Ascii7bits() {
-        gsmCodesReversed = new HashMap<Character, String>();
-        gsmCodesReversed.put('Δ',"0000001");
-        gsmCodesReversed.put(' ',"0000010");
-        gsmCodesReversed.put('0',"0000011");
-        gsmCodesReversed.put('¡',"0000100");
-        gsmCodesReversed.put('P',"0000101");
-        gsmCodesReversed.put('¿',"0000110");
-        gsmCodesReversed.put('p',"0000111");
-        gsmCodesReversed.put('£',"0001000");
-        gsmCodesReversed.put('_',"0001001");
-        gsmCodesReversed.put('!',"0001010");
-        gsmCodesReversed.put('1',"0001011");
-        gsmCodesReversed.put('A',"0001100");
-        gsmCodesReversed.put('Q',"0001101");
-        gsmCodesReversed.put('a',"0001110");
-        gsmCodesReversed.put('q',"0001111");
-        gsmCodesReversed.put('$',"0010000");
-        gsmCodesReversed.put('Φ',"0010001");
-        gsmCodesReversed.put('"',"0010010");
-        gsmCodesReversed.put('2',"0010011");
-        gsmCodesReversed.put('B',"0010100");
-        gsmCodesReversed.put('R',"0010101");
-        gsmCodesReversed.put('b',"0010110");
-        gsmCodesReversed.put('r',"0010111");
-        gsmCodesReversed.put('¥',"0011000");
-        gsmCodesReversed.put('Γ',"0011001");
-        gsmCodesReversed.put('#',"0011010");
-        gsmCodesReversed.put('3',"0011011");
-        gsmCodesReversed.put('C',"0011100");
-        gsmCodesReversed.put('S',"0011101");
-        gsmCodesReversed.put('c',"0011110");
-        gsmCodesReversed.put('s',"0011111");
-        gsmCodesReversed.put('è',"0100000");
-        gsmCodesReversed.put('Λ',"0100001");
-        gsmCodesReversed.put('¤',"0100010");
-        gsmCodesReversed.put('4',"0100011");
-        gsmCodesReversed.put('D',"0100100");
-        gsmCodesReversed.put('T',"0100101");
-        gsmCodesReversed.put('d',"0100110");
-        gsmCodesReversed.put('t',"0100111");
-        gsmCodesReversed.put('é',"0101000");
-        gsmCodesReversed.put('Ω',"0101001");
-        gsmCodesReversed.put('%',"0101010");
-        gsmCodesReversed.put('5',"0101011");
-        gsmCodesReversed.put('E',"0101100");
-        gsmCodesReversed.put('U',"0101101");
-        gsmCodesReversed.put('e',"0101110");
-        gsmCodesReversed.put('u',"0101111");
-        gsmCodesReversed.put('ù',"0110000");
-        gsmCodesReversed.put('Π',"0110001");
-        gsmCodesReversed.put('&',"0110010");
-        gsmCodesReversed.put('6',"0110011");
-        gsmCodesReversed.put('F',"0110100");
-        gsmCodesReversed.put('V',"0110101");
-        gsmCodesReversed.put('f',"0110110");
-        gsmCodesReversed.put('v',"0110111");
-        gsmCodesReversed.put('ì',"0111000");
-        gsmCodesReversed.put('Ψ',"0111001");
-        gsmCodesReversed.put('\'',"0111010");
-        gsmCodesReversed.put('7',"0111011");
-        gsmCodesReversed.put('G',"0111100");
-        gsmCodesReversed.put('W',"0111101");
-        gsmCodesReversed.put('g',"0111110");
-        gsmCodesReversed.put('w',"0111111");
-        gsmCodesReversed.put('ò',"1000000");
-        gsmCodesReversed.put('Σ',"1000001");
-        gsmCodesReversed.put('(',"1000010");
-        gsmCodesReversed.put('8',"1000011");
-        gsmCodesReversed.put('H',"1000100");
-        gsmCodesReversed.put('X',"1000101");
-        gsmCodesReversed.put('h',"1000110");
-        gsmCodesReversed.put('x',"1000111");
-        gsmCodesReversed.put('Ç',"1001000");
-        gsmCodesReversed.put('Θ',"1001001");
-        gsmCodesReversed.put(')',"1001010");
-        gsmCodesReversed.put('9',"1001011");
-        gsmCodesReversed.put('I',"1001100");
-        gsmCodesReversed.put('Y',"1001101");
-        gsmCodesReversed.put('i',"1001110");
-        gsmCodesReversed.put('y',"1001111");
-        gsmCodesReversed.put('Ξ',"1010000");
-        gsmCodesReversed.put('*',"1010001");
-        gsmCodesReversed.put(':',"1010010");
-        gsmCodesReversed.put('J',"1010011");
-        gsmCodesReversed.put('Z',"1010100");
-        gsmCodesReversed.put('j',"1010101");
-        gsmCodesReversed.put('z',"1010110");
-        gsmCodesReversed.put('Ø',"1010111");
-        gsmCodesReversed.put('+',"1011000");
-        gsmCodesReversed.put(';',"1011001");
-        gsmCodesReversed.put('K',"1011010");
-        gsmCodesReversed.put('Ä',"1011011");
-        gsmCodesReversed.put('k',"1011100");
-        gsmCodesReversed.put('ä',"1011101");
-        gsmCodesReversed.put('ø',"1011110");
-        gsmCodesReversed.put('Æ',"1011111");
-        gsmCodesReversed.put(',',"1100000");
-        gsmCodesReversed.put('<',"1100001");
-        gsmCodesReversed.put('L',"1100010");
-        gsmCodesReversed.put('Ö',"1100011");
-        gsmCodesReversed.put('l',"1100100");
-        gsmCodesReversed.put('ö',"1100101");
-        gsmCodesReversed.put('æ',"1100110");
-        gsmCodesReversed.put('-',"1100111");
-        gsmCodesReversed.put('=',"1101000");
-        gsmCodesReversed.put('M',"1101001");
-        gsmCodesReversed.put('Ñ',"1101010");
-        gsmCodesReversed.put('m',"1101011");
-        gsmCodesReversed.put('ñ',"1101100");
-        gsmCodesReversed.put('Å',"1101101");
-        gsmCodesReversed.put('ß',"1101110");
-        gsmCodesReversed.put('.',"1101111");
-        gsmCodesReversed.put('>',"1110000");
-        gsmCodesReversed.put('N',"1110001");
-        gsmCodesReversed.put('Ü',"1110010");
-        gsmCodesReversed.put('n',"1110011");
-        gsmCodesReversed.put('ü',"1110100");
-        gsmCodesReversed.put('å',"1110101");
-        gsmCodesReversed.put('É',"1110110");
-        gsmCodesReversed.put('/',"1110111");
-        gsmCodesReversed.put('?',"1111000");
-        gsmCodesReversed.put('O',"1111001");
-        gsmCodesReversed.put('§',"1111010");
-        gsmCodesReversed.put('o',"1111011");
-        gsmCodesReversed.put('à',"1111100");
-        gsmCodesReversed.put('@',"1111101");
-        gsmCodesReversed.put('\n',"1111110");//LF\n
-        gsmCodesReversed.put('€',"1111111");//ESC char c=0b0011011;
-        gsmCodesReversed.put('{',"0000000");//CR\r
-
-
-        gsmCodes = new HashMap<String, Character>();
-        gsmCodes.put("0000001",'Δ');
-        gsmCodes.put("0000010",' ');
-        gsmCodes.put("0000011",'0');
-        gsmCodes.put("0000100",'¡');
-        gsmCodes.put("0000101",'P');
-        gsmCodes.put("0000110",'¿');
-        gsmCodes.put("0000111",'p');
-        gsmCodes.put("0001000",'£');
-        gsmCodes.put("0001001",'_');
-        gsmCodes.put("0001010",'!');
-        gsmCodes.put("0001011",'1');
-        gsmCodes.put("0001100",'A');
-        gsmCodes.put("0001101",'Q');
-        gsmCodes.put("0001110",'a');
-        gsmCodes.put("0001111",'q');
-        gsmCodes.put("0010000",'$');
-        gsmCodes.put("0010001",'Φ');
-        gsmCodes.put("0010010",'"');
-        gsmCodes.put("0010011",'2');
-        gsmCodes.put("0010100",'B');
-        gsmCodes.put("0010101",'R');
-        gsmCodes.put("0010110",'b');
-        gsmCodes.put("0010111",'r');
-        gsmCodes.put("0011000",'¥');
-        gsmCodes.put("0011001",'Γ');
-        gsmCodes.put("0011010",'#');
-        gsmCodes.put("0011011",'3');
-        gsmCodes.put("0011100",'C');
-        gsmCodes.put("0011101",'S');
-        gsmCodes.put("0011110",'c');
-        gsmCodes.put("0011111",'s');
-        gsmCodes.put("0100000",'è');
-        gsmCodes.put("0100001",'Λ');
-        gsmCodes.put("0100010",'¤');
-        gsmCodes.put("0100011",'4');
-        gsmCodes.put("0100100",'D');
-        gsmCodes.put("0100101",'T');
-        gsmCodes.put("0100110",'d');
-        gsmCodes.put("0100111",'t');
-        gsmCodes.put("0101000",'é');
-        gsmCodes.put("0101001",'Ω');
-        gsmCodes.put("0101010",'%');
-        gsmCodes.put("0101011",'5');
-        gsmCodes.put("0101100",'E');
-        gsmCodes.put("0101101",'U');
-        gsmCodes.put("0101110",'e');
-        gsmCodes.put("0101111",'u');
-        gsmCodes.put("0110000",'ù');
-        gsmCodes.put("0110001",'Π');
-        gsmCodes.put("0110010",'&');
-        gsmCodes.put("0110011",'6');
-        gsmCodes.put("0110100",'F');
-        gsmCodes.put("0110101",'V');
-        gsmCodes.put("0110110",'f');
-        gsmCodes.put("0110111",'v');
-        gsmCodes.put("0111000",'ì');
-        gsmCodes.put("0111001",'Ψ');
-        gsmCodes.put("0111010",'\'');
-        gsmCodes.put("0111011",'7');
-        gsmCodes.put("0111100",'G');
-        gsmCodes.put("0111101",'W');
-        gsmCodes.put("0111110",'g');
-        gsmCodes.put("0111111",'w');
-        gsmCodes.put("1000000",'ò');
-        gsmCodes.put("1000001",'Σ');
-        gsmCodes.put("1000010",'(');
-        gsmCodes.put("1000011",'8');
-        gsmCodes.put("1000100",'H');
-        gsmCodes.put("1000101",'X');
-        gsmCodes.put("1000110",'h');
-        gsmCodes.put("1000111",'x');
-        gsmCodes.put("1001000",'Ç');
-        gsmCodes.put("1001001",'Θ');
-        gsmCodes.put("1001010",')');
-        gsmCodes.put("1001011",'9');
-        gsmCodes.put("1001100",'I');
-        gsmCodes.put("1001101",'Y');
-        gsmCodes.put("1001110",'i');
-        gsmCodes.put("1001111",'y');
-        gsmCodes.put("1010000",'Ξ');
-        gsmCodes.put("1010001",'*');
-        gsmCodes.put("1010010",':');
-        gsmCodes.put("1010011",'J');
-        gsmCodes.put("1010100",'Z');
-        gsmCodes.put("1010101",'j');
-        gsmCodes.put("1010110",'z');
-        gsmCodes.put("1010111",'Ø');
-        gsmCodes.put("1011000",'+');
-        gsmCodes.put("1011001",';');
-        gsmCodes.put("1011010",'K');
-        gsmCodes.put("1011011",'Ä');
-        gsmCodes.put("1011100",'k');
-        gsmCodes.put("1011101",'ä');
-        gsmCodes.put("1011110",'ø');
-        gsmCodes.put("1011111",'Æ');
-        gsmCodes.put("1100000",',');
-        gsmCodes.put("1100001",'<');
-        gsmCodes.put("1100010",'L');
-        gsmCodes.put("1100011",'Ö');
-        gsmCodes.put("1100100",'l');
-        gsmCodes.put("1100101",'ö');
-        gsmCodes.put("1100110",'æ');
-        gsmCodes.put("1100111",'-');
-        gsmCodes.put("1101000",'=');
-        gsmCodes.put("1101001",'M');
-        gsmCodes.put("1101010",'Ñ');
-        gsmCodes.put("1101011",'m');
-        gsmCodes.put("1101100",'ñ');
-        gsmCodes.put("1101101",'Å');
-        gsmCodes.put("1101110",'ß');
-        gsmCodes.put("1101111",'.');
-        gsmCodes.put("1110000",'>');
-        gsmCodes.put("1110001",'N');
-        gsmCodes.put("1110010",'Ü');
-        gsmCodes.put("1110011",'n');
-        gsmCodes.put("1110100",'ü');
-        gsmCodes.put("1110101",'å');
-        gsmCodes.put("1110110",'É');
-        gsmCodes.put("1110111",'/');
-        gsmCodes.put("1111000",'?');
-        gsmCodes.put("1111001",'O');
-        gsmCodes.put("1111010",'§');
-        gsmCodes.put("1111011",'o');
-        gsmCodes.put("1111100",'à');
-        gsmCodes.put("1111101",'@');
-        gsmCodes.put("1111110",'\n');//LF\n
-        gsmCodes.put("1111111",'€');//ESC char c=0b0011011;
-        gsmCodes.put("0000000",'{');//CR\r
+    }
+
+    /**
+     * the character of a 7 bits code
+     *
+     * @param code 0 to 127
+     * @return the character of the code
+     */
+    public static char getCharacter(int code) {
+        return CHARACTERS[code];
+    }
 
+    /**
+     * the 7 bits code of a character
+     *
+     * @param c the character
+     * @return 0 to 127, -1 if the character has no 7 bits code
+     */
+    public static int getCode(char c) {
+        return c < CODES.length ? CODES[c] : -1;
     }
 
     /**
@@ -286,18 +70,21 @@ public class Ascii7bits {
      * @return
      */
     public String Ascii7BitsStringToStreamOfBits(String input) {
-        StringBuilder result = new StringBuilder();
+        char[] result = new char[input.length() * 7];
         for (int i = 0; i < input.length(); i++) {
 
-            String s = this.gsmCodesReversed.get(input.charAt(i));
-            if (s == null){
+            int code = getCode(input.charAt(i));
+            if (code < 0){
                 System.out.println("ERROR wrong code" + input.charAt(i));
                 throw new NullPointerException();
             }
-            else  result.append(s);
+
+            // the 7 bits of the code, the most significant first
+            for (int bit = 0; bit < 7; bit++)
+                result[7 * i + bit] = (char) ('0' + ((code >>> (6 - bit)) & 1));
         }
 
-        return result.toString();
+        return new String(result);
     }
 
     /**
@@ -310,32 +97,80 @@ public class Ascii7bits {
      * @return
      */
     public String stringOfBitsTo7BitsAscii(String input) {
-        if (input.length() == 0 || input == null)
+        if (input == null || input.length() == 0)
             throw new NullPointerException();
 
-        StringBuilder result = new StringBuilder();
-
-        int numberOf7bitsChars = (int) Math.ceil(input.length() / 7.0);
+        int numberOf7bitsChars = (input.length() + 6) / 7;
+        char[] result = new char[numberOf7bitsChars];
 
         for (int i = 0; i < numberOf7bitsChars; i++) {
-            String SevenBitsChar = null;
-            if (input.length() > 7 * i + 7)
-                SevenBitsChar = input.substring(7 * i, 7 * i + 7);
-            else{
-                SevenBitsChar = input.substring(7 * i);
-                while (SevenBitsChar.length() < 7)
-                    SevenBitsChar+='0';
+            // the last bits are completed with zeros
+            int code = 0;
+            for (int j = 7 * i; j < 7 * i + 7; j++) {
+                int bit = j < input.length() ? input.charAt(j) - '0' : 0;
+                if (bit != 0 && bit != 1) throw new NullPointerException();
+                code = (code << 1) | bit;
             }
+            result[i] = CHARACTERS[code];
+        }
+        return new String(result);
+    }
 
-            //System.out.println("\t c: "+SevenBitsChar);
-            Character c = this.gsmCodes.get(SevenBitsChar);
-            if (c == null){
-                System.out.println("ERROR wrong code" + SevenBitsChar);
-                throw new NullPointerException();
+    /**
+     * Translate a stream into 7 bits ASCII characters, 7 bits of the stream
+     * at a time. Same result as stringOfBitsTo7BitsAscii(stream.toString()):
+     * the bits of the stream, then the '1' of the padding limit, then zeros
+     * up to the last character.
+     *
+     * @param stream the stream to send (a compressed message)
+     * @return the characters of the 7 bits codes
+     */
+    public static String encode(Stream stream) {
+        if (stream == null) throw new NullPointerException();
+
+        // the bits and the padding limit, the bits after the limit are zeros
+        BitReader reader = new BitReader(stream.buffer(), 0, stream.numberOfBits() + 1);
+        char[] result = new char[(reader.remaining() + 6) / 7];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = CHARACTERS[reader.peekBits(7)];
+            reader.skip(Math.min(7, reader.remaining()));
+        }
+        return new String(result);
+    }
+
+    /**
+     * Translate 7 bits ASCII characters back into the stream given to encode().
+     * Same result as Stream.reconstructStream(Ascii7BitsStringToStreamOfBits(text)):
+     * the zeros at the end and the last '1' (padding limit) are removed.
+     *
+     * @param text the characters of the 7 bits codes
+     * @return the stream
+     */
+    public static Stream decode(CharSequence text) {
+        if (text == null || text.length() == 0) throw new NullPointerException();
+
+        // 8 codes in 7 bytes, the first bit of a code is the most significant
+        byte[] bytes = new byte[(text.length() * 7 + 7) / 8];
+        int length = 0;
+        long accumulator = 0;
+        int bits = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int code = getCode(text.charAt(i));
+            if (code < 0) throw new NullPointerException();
+            accumulator = (accumulator << 7) | code;
+            bits += 7;
+            while (bits >= 8) {
+                bits -= 8;
+                bytes[length++] = (byte) (accumulator >>> bits);
             }
-            else  result.append((char) c);
         }
-        return result.toString();
+        if (bits > 0)
+            bytes[length++] = (byte) (accumulator << (8 - bits));
+
+        // the padding limit is in the last byte which is not zero
+        while (length > 0 && bytes[length - 1] == 0) length--;
+        if (length == 0) throw new NullPointerException();
+        return Stream.reconstructStream(bytes, length);
     }
 
     /**
@@ -350,36 +185,37 @@ public class Ascii7bits {
     public int gsmBitsLength(String gsmMessage){
         // return the number of bits used to store the the message as a GSM message
 
-        // only Euro sign is allowed in this extension characters (counted twice)
-        // it is equivalent to 14bits in 7bitsASCII
-
         if (gsmMessage == null || gsmMessage.length() == 0) return 0;
 
-        int numberOf7AsciiChars = 0;
-        int numberOf7AsciiExten = 0; //'€' used for ESC or '{' used for \r
-        int numberOfOtherChars = 0;
+        int septets = gsmSeptets(gsmMessage);
+
+        //convert it to unicode message (16 bits per char) if a char has no 7bits code
+        if (septets < 0) return gsmMessage.length() * 16;
+        return septets * 7;
+    }
 
+    /**
+     * number of 7 bits characters needed to send the message as a GSM message
+     *
+     * @param gsmMessage a message to send in an SMS
+     * @return number of septets, -1 if a character cannot be sent in 7 bits
+     */
+    public static int gsmSeptets(CharSequence gsmMessage) {
+        // only Euro sign is allowed in this extension characters (counted twice)
+        // it is equivalent to 14bits in 7bitsASCII
+        int septets = 0;
         for (int i = 0; i < gsmMessage.length(); i++){
-            Character c = gsmMessage.charAt(i);
+            char c = gsmMessage.charAt(i);
             if (c == '€' || c =='|' || c == '^' || c == '{' || c == '}' || c == '[' || c == '~' || c == ']' || c == '\\'){
-                numberOf7AsciiExten++;
-            }else {
-                if (this.gsmCodesReversed.containsKey(c)) {
-                    // only 7bits per char (€ already handled)
-                    numberOf7AsciiChars++;
-                } else {
-                    //convert it to unicode message (16 bits per char)
-                    numberOfOtherChars++;
-                }
+                septets += 2;
+            } else if (getCode(c) >= 0) {
+                // only 7bits per char (€ already handled)
+                septets++;
+            } else {
+                return -1;
             }
         }
-
-        int result = 0;
-
-        if (numberOfOtherChars == 0) result = (numberOf7AsciiChars + numberOf7AsciiExten * 2) * 7;
-        else result = (numberOf7AsciiChars + numberOf7AsciiExten + numberOfOtherChars ) * 16;
-
-        return result;
+        return septets;
     }
 
 
@@ -414,5 +250,18 @@ public class Ascii7bits {
         System.out.println("Orginal: "+bits);
         System.out.println("GSMcode: "+codes);
         System.out.println("Reverse: "+gsm.Ascii7BitsStringToStreamOfBits(codes));
+
+        //Check the direct translation against the strings of bits
+        for (int testCases = 0; testCases < 10000; testCases++) {
+            Stream stream = new Stream();
+            int length = (int) (Math.random() * 300);
+            for (int i = 0; i < length; i++)
+                stream.addBit(Math.random() < 0.5);
+
+            String text = Ascii7bits.encode(stream);
+            assert(text.equals(gsm.stringOfBitsTo7BitsAscii(stream.toString())));
+            assert(Ascii7bits.decode(text).equals(Stream.reconstructStream(gsm.Ascii7BitsStringToStreamOfBits(text))));
+            assert(Ascii7bits.decode(text).equals(stream));
+        }
     }
 }
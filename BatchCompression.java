@@ -0,0 +1,303 @@
+package com.simopr.smscompress.algorithms;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compress or decompress many messages at once on the workers of a
+ * fork-join pool.
+ *
+ * The list is split in chunks handled by the workers. Each worker has its own
+ * HuffmanCodec and buffers, reused from one message to the next: only the
+ * bytes of the results are allocated. The results are returned in the order
+ * of the messages, and a
+ * message that cannot be (de)compressed only gets an error code: the other
+ * messages of the batch are not affected.
+ */
+public class BatchCompression {
+
+    // the message has been (de)compressed
+    public static final int OK = 0;
+    // the message is null
+    public static final int ERROR_NULL = 1;
+    // the message is empty, there is nothing to compress
+    public static final int ERROR_EMPTY = 2;
+    // the message is not a compressed message
+    public static final int ERROR_CORRUPTED = 3;
+
+    // number of messages handled by a task without splitting it
+    private static final int CHUNK_SIZE = 16;
+
+    // codec and buffers of each worker, reused for all its messages
+    private static final ThreadLocal<Worker> WORKER = ThreadLocal.withInitial(Worker::new);
+
+    /**
+     * The result of one message of a batch: the bytes or an error code
+     */
+    public static final class Result {
+
+        private final byte[] bytes;
+        private final int error;
+
+        private Result(byte[] bytes, int error) {
+            this.bytes = bytes;
+            this.error = error;
+        }
+
+        /**
+         * @return the (de)compressed bytes, null if there was an error
+         */
+        public byte[] getBytes() {
+            return this.bytes;
+        }
+
+        /**
+         * @return OK or one of the ERROR_ codes
+         */
+        public int getError() {
+            return this.error;
+        }
+
+        public boolean isOk() {
+            return this.error == OK;
+        }
+
+        @Override
+        public String toString() {
+            return this.isOk() ? "OK(" + this.bytes.length + "bytes)" : "ERROR(" + this.error + ")";
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int format;
+
+    /**
+     * Batches compressed in FORMAT_TRIE on the common pool
+     */
+    public BatchCompression() {
+        this(ForkJoinPool.commonPool(), Compression.FORMAT_TRIE);
+    }
+
+    /**
+     * @param pool the workers running the batches
+     * @param format format of the compressed messages (see Compression.compress)
+     */
+    public BatchCompression(ForkJoinPool pool, int format) {
+        if (pool == null) throw new NullPointerException();
+        if (format != Compression.FORMAT_TRIE && format != Compression.FORMAT_CANONICAL
+                && format != Compression.FORMAT_STATIC && format != Compression.FORMAT_ADAPTIVE)
+            throw new IllegalArgumentException();
+        this.pool = pool;
+        this.format = format;
+    }
+
+    /**
+     * Compress each message of the list. The compressed bytes of a message
+     * end with the padding byte, like Stream.getBytes().
+     *
+     * @param messages the bytes of the messages
+     * @return the result of each message, in the same order
+     */
+    public List<Result> compressBatch(List<byte[]> messages) {
+        return this.run(messages, true);
+    }
+
+    /**
+     * Decompress each message of the list (as given by compressBatch or
+     * Stream.getBytes() of a compressed message).
+     *
+     * @param compressedMessages the compressed bytes of the messages
+     * @return the result of each message, in the same order
+     */
+    public List<Result> decompressBatch(List<byte[]> compressedMessages) {
+        return this.run(compressedMessages, false);
+    }
+
+    private List<Result> run(List<byte[]> messages, boolean compress) {
+        // random access for the tasks, whatever the kind of list
+        byte[][] input = messages.toArray(new byte[0][]);
+        Result[] results = new Result[input.length];
+        if (input.length > 0)
+            this.pool.invoke(new BatchTask(input, results, 0, input.length, compress));
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    private Result compressOne(byte[] message) {
+        if (message == null) return new Result(null, ERROR_NULL);
+        if (message.length == 0) return new Result(null, ERROR_EMPTY);
+
+        Worker worker = WORKER.get();
+        ByteBuffer src = worker.input(message);
+        CodecMetrics metrics = Compression.getMetrics();
+        long begin = metrics.isEnabled() ? System.nanoTime() : 0;
+        int bits;
+        while ((bits = worker.codec.compress(src, worker.output, this.format)) == HuffmanCodec.OVERFLOW)
+            worker.grow();
+        if (metrics.isEnabled())
+            metrics.recordCompress(this.format, message.length, bits, worker.codec.headerBits(), System.nanoTime() - begin);
+        return new Result(worker.result(), OK);
+    }
+
+    private static Result decompressOne(byte[] compressed) {
+        if (compressed == null) return new Result(null, ERROR_NULL);
+        if (compressed.length == 0) return new Result(null, ERROR_EMPTY);
+
+        Worker worker = WORKER.get();
+        ByteBuffer src = worker.input(compressed);
+        CodecMetrics metrics = Compression.getMetrics();
+        long begin = metrics.isEnabled() ? System.nanoTime() : 0;
+        int bytes;
+        while ((bytes = worker.codec.decompress(src, worker.output)) == HuffmanCodec.OVERFLOW)
+            worker.grow();
+        if (metrics.isEnabled())
+            metrics.recordDecompress(8 * compressed.length, bytes < 0 ? -1 : bytes, System.nanoTime() - begin);
+        if (bytes < 0) return new Result(null, ERROR_CORRUPTED);
+        return new Result(worker.result(), OK);
+    }
+
+    /**
+     * The codec of a worker and its buffers, grown to the longest message
+     * seen by the worker
+     */
+    private static final class Worker {
+
+        private final HuffmanCodec codec = new HuffmanCodec();
+        private ByteBuffer input = ByteBuffer.allocate(256);
+        private ByteBuffer output = ByteBuffer.allocate(1024);
+
+        /**
+         * Copy the bytes in the input buffer, and empty the output buffer
+         *
+         * @return the input buffer, from 0 to the number of bytes
+         */
+        ByteBuffer input(byte[] bytes) {
+            if (this.input.capacity() < bytes.length)
+                this.input = ByteBuffer.allocate(Math.max(bytes.length, 2 * this.input.capacity()));
+            this.input.clear();
+            this.input.put(bytes).flip();
+            this.output.clear();
+            return this.input;
+        }
+
+        /**
+         * Double the output buffer, after the codec returned OVERFLOW
+         * (nothing was written)
+         */
+        void grow() {
+            this.output = ByteBuffer.allocate(2 * this.output.capacity());
+        }
+
+        /**
+         * @return a copy of the bytes written in the output buffer
+         */
+        byte[] result() {
+            return Arrays.copyOf(this.output.array(), this.output.position());
+        }
+    }
+
+    /**
+     * (De)compress the messages from start to end, split in two while
+     * there are more than CHUNK_SIZE messages
+     */
+    private class BatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[][] input;
+        private final Result[] results;
+        private final int start;
+        private final int end;
+        private final boolean compress;
+
+        BatchTask(byte[][] input, Result[] results, int start, int end, boolean compress) {
+            this.input = input;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+            this.compress = compress;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start > CHUNK_SIZE) {
+                int middle = (this.start + this.end) >>> 1;
+                invokeAll(new BatchTask(this.input, this.results, this.start, middle, this.compress),
+                        new BatchTask(this.input, this.results, middle, this.end, this.compress));
+                return;
+            }
+            for (int i = this.start; i < this.end; i++) {
+                this.results[i] = this.compress
+                        ? BatchCompression.this.compressOne(this.input[i])
+                        : decompressOne(this.input[i]);
+            }
+        }
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     */
+    public static void main(String[] args) {
+
+        Random random = new Random(5);
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sms = new StringBuilder();
+            int length = 1 + random.nextInt(160);
+            for (int j = 0; j < length; j++)
+                sms.append((char) ('a' + random.nextInt(26)));
+            messages.add(sms.toString().getBytes());
+        }
+        messages.set(7, null);
+        messages.set(11, new byte[0]);
+        // longer than the buffers of the workers: they grow
+        byte[] big = new byte[100000];
+        random.nextBytes(big);
+        messages.set(13, big);
+
+        for (int format = Compression.FORMAT_TRIE; format <= Compression.FORMAT_ADAPTIVE; format++) {
+            BatchCompression batch = new BatchCompression(ForkJoinPool.commonPool(), format);
+            List<Result> compressed = batch.compressBatch(messages);
+            assert(compressed.size() == messages.size());
+            assert(compressed.get(7).getError() == ERROR_NULL);
+            assert(compressed.get(11).getError() == ERROR_EMPTY);
+            for (int i = 0; i < messages.size(); i++) {
+                if (i == 7 || i == 11) continue;
+                byte[] expected = Compression.compress(new Stream(messages.get(i)), format).getBytes();
+                assert(Arrays.equals(compressed.get(i).getBytes(), expected));
+            }
+
+            List<byte[]> inputs = new ArrayList<>();
+            for (Result result : compressed)
+                inputs.add(result.getBytes());
+            // a corrupted message in the middle of the batch
+            inputs.set(3, new byte[]{(byte) 0xFF, (byte) 0xFF});
+
+            List<Result> decompressed = batch.decompressBatch(inputs);
+            assert(decompressed.get(3).getError() == ERROR_CORRUPTED);
+            for (int i = 0; i < messages.size(); i++) {
+                if (i == 3 || i == 7 || i == 11) continue;
+                assert(Arrays.equals(decompressed.get(i).getBytes(), messages.get(i)));
+            }
+
+            // compare with one message at a time
+            long begin = System.nanoTime();
+            for (byte[] message : messages)
+                if (message != null && message.length > 0)
+                    Compression.compress(new Stream(message), format);
+            long single = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            batch.compressBatch(messages);
+            long parallel = System.nanoTime() - begin;
+
+            System.out.println("format " + format + ": one at a time " + single / 1000000 + "ms, batch "
+                    + parallel / 1000000 + "ms on " + ForkJoinPool.commonPool().getParallelism() + " workers");
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.simopr.smscompress.algorithms;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Cursor over the bits of a stream (or of an array of bytes, or of a
+ * ByteBuffer such as a memory-mapped file). The bits are
+ * read from the most significant bit of each byte, one at a time or several
+ * at a time, without boxing them like the Iterator of a Stream does.
+ *
+ * Reading after the last bit throws a NullPointerException like the rest
+ * of the decoder does for a wrong message.
+ */
+public class BitReader {
+
+    // bytes holding the bits to read (null when reading a ByteBuffer)
+    private final byte[] buffer;
+
+    // bytes holding the bits to read when they are not in an array
+    private final ByteBuffer byteBuffer;
+
+    // index in buffer of the byte 0 (a slice of a heap ByteBuffer starts inside its array)
+    private final int arrayOffset;
+
+    // number of bytes of the buffer
+    private final int size;
+
+    // index of the next bit to read
+    private int position;
+
+    // index of the bit following the last bit that can be read
+    private final int limit;
+
+    /**
+     * Read the bits of a stream, excluding its padding bits.
+     * The stream must not be modified while it is read.
+     *
+     * @param stream the stream to read
+     */
+    public BitReader(Stream stream) {
+        this(stream.buffer(), 0, stream.numberOfBits());
+    }
+
+    /**
+     * Read all the bits of an array of bytes
+     *
+     * @param bytes the bytes to read
+     */
+    public BitReader(byte[] bytes) {
+        this(bytes, 0, bytes.length * 8);
+    }
+
+    /**
+     * Read numberOfBits bits of an array of bytes starting at the bit offset
+     *
+     * @param bytes the bytes to read
+     * @param offset index of the first bit to read
+     * @param numberOfBits number of bits that can be read
+     */
+    public BitReader(byte[] bytes, int offset, int numberOfBits) {
+        if (bytes == null) throw new NullPointerException();
+        if (offset < 0 || numberOfBits < 0 || (long) offset + numberOfBits > (long) bytes.length * 8)
+            throw new IndexOutOfBoundsException();
+
+        this.buffer = bytes;
+        this.byteBuffer = null;
+        this.arrayOffset = 0;
+        this.size = bytes.length;
+        this.position = offset;
+        this.limit = offset + numberOfBits;
+    }
+
+    /**
+     * Read numberOfBits bits of a ByteBuffer starting at the bit offset.
+     * The indexes are absolute (from the byte 0 of the buffer, up to its
+     * limit), the position of the buffer is ignored and not modified.
+     *
+     * @param bytes the bytes to read
+     * @param offset index of the first bit to read
+     * @param numberOfBits number of bits that can be read
+     */
+    public BitReader(ByteBuffer bytes, int offset, int numberOfBits) {
+        if (bytes == null) throw new NullPointerException();
+        if (offset < 0 || numberOfBits < 0 || (long) offset + numberOfBits > (long) bytes.limit() * 8)
+            throw new IndexOutOfBoundsException();
+
+        // read the array directly when there is one
+        boolean array = bytes.hasArray();
+        this.buffer = array ? bytes.array() : null;
+        this.byteBuffer = array ? null : bytes;
+        this.arrayOffset = array ? bytes.arrayOffset() : 0;
+        this.size = bytes.limit();
+        this.position = offset;
+        this.limit = offset + numberOfBits;
+    }
+
+    /**
+     * Read the next bit
+     *
+     * @return true if the bit is 1, false if it is 0
+     */
+    public boolean readBit() {
+        if (this.position >= this.limit) throw new NullPointerException();
+        int p = this.position++;
+        return (this.byteAt(p >>> 3) & (0b10000000 >>> (p & 7))) != 0;
+    }
+
+    /**
+     * Read the next n bits
+     *
+     * @param n number of bits to read (0 to 32)
+     * @return the bits read, right aligned, the first one is the most significant
+     */
+    public int readBits(int n) {
+        if (n > this.remaining()) throw new NullPointerException();
+        int bits = this.peekBits(n);
+        this.position += n;
+        return bits;
+    }
+
+    /**
+     * Get the next n bits without moving the cursor. When less than n bits
+     * remain, the missing bits are replaced with zeros.
+     *
+     * @param n number of bits to look at (0 to 32)
+     * @return the bits, right aligned, the first one is the most significant
+     */
+    public int peekBits(int n) {
+        if (n < 0 || n > 32) throw new IllegalArgumentException();
+        if (n == 0) return 0;
+
+        int first = this.position >>> 3;
+        int bits;
+        if (this.byteBuffer != null && first + 8 <= this.size) {
+            // 8 bytes at once, the most significant first whatever the order of the buffer
+            long word = this.byteBuffer.getLong(first);
+            if (this.byteBuffer.order() != ByteOrder.BIG_ENDIAN) word = Long.reverseBytes(word);
+            bits = (int) ((word << (this.position & 7)) >>> (64 - n));
+        } else {
+            bits = this.gatherBits(first, n);
+        }
+
+        // the bits after the limit are not part of the stream
+        int available = this.limit - this.position;
+        if (available < n)
+            bits &= available <= 0 ? 0 : (int) (((1L << available) - 1) << (n - available));
+        return bits;
+    }
+
+    /**
+     * the n bits at the position, read byte by byte from the byte first
+     */
+    private int gatherBits(int first, int n) {
+        // gather the bytes covering the n bits in a window
+        int last = Math.min((this.position + n - 1) >>> 3, this.size - 1);
+        long window = 0;
+        int count = 0;
+        for (int i = first; i <= last; i++, count++)
+            window = (window << 8) | this.byteAt(i);
+
+        // align the n bits on the right, bits after the end of the buffer are zeros
+        int shift = count * 8 - (this.position & 7) - n;
+        return (int) ((shift >= 0 ? window >>> shift : window << -shift) & ((1L << n) - 1));
+    }
+
+    /**
+     * Skip the next n bits
+     *
+     * @param n number of bits to skip
+     */
+    public void skip(int n) {
+        if (n < 0) throw new IllegalArgumentException();
+        if (n > this.remaining()) throw new NullPointerException();
+        this.position += n;
+    }
+
+    /**
+     * Move the cursor to a bit already read or still to read
+     *
+     * @param position index of the next bit to read
+     */
+    public void seek(int position) {
+        if (position < 0 || position > this.limit) throw new IndexOutOfBoundsException();
+        this.position = position;
+    }
+
+    /**
+     * number of bits that can still be read
+     *
+     * @return number of bits after the cursor
+     */
+    public int remaining() {
+        return this.limit - this.position;
+    }
+
+    /**
+     * index of the next bit to read
+     *
+     * @return position of the cursor in bits
+     */
+    public int position() {
+        return this.position;
+    }
+
+    /**
+     * the byte at index, from 0 to 255
+     */
+    private int byteAt(int index) {
+        return (this.buffer != null ? this.buffer[this.arrayOffset + index] : this.byteBuffer.get(index)) & 0xFF;
+    }
+}
@@ -1,10 +1,7 @@
 package com.simopr.smscompress.algorithms;
 
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 
 
 /**
@@ -12,24 +9,10 @@ import java.util.LinkedList;
  */
 public class Btree {
 
-    /**
-     * to sort a list of nodes using their weights
-     */
-    private class NodesComparator implements Comparator<Node>{
-        @Override
-        public int compare(Node o1, Node o2) {
-            int weight = o1.getWeight() - o2.getWeight();
-            if (weight != 0)
-                return weight;
-            else
-                return o1.getCode() - o2.getCode();
-        }
-    }
-
     // A binary tree where the leaf nodes represent all the Characters
     // found in the message.
     // Binary tree using weight as the number of times a Character appears
-    private LinkedList<Node> btree;
+    private Node root;
 
 
     // the list of the codes generated for the compression and their respective
@@ -48,14 +31,19 @@ public class Btree {
      * @param fDict frequency of each byte return as a hash dictionary
      */
     public Btree(HashMap<Byte, Integer> fDict){
+        this(Btree.toHistogram(fDict));
+    }
 
-        if (fDict == null || fDict.isEmpty()) throw new NullPointerException();
-
-        // Get the number of characters in the dico
-        this.N = fDict.size();
+    /**
+     * Create a Btree from the frequencies of the bytes of a message.
+     * histogram[b & 0xFF] is the number of times the byte b appears,
+     * only the first 256 elements are used.
+     *
+     * @param histogram frequency of each byte (see Compression.getHistogram)
+     */
+    public Btree(int[] histogram){
 
-        // initialize the btree
-        this.btree = new LinkedList<Node>();
+        if (histogram == null || histogram.length < 256) throw new NullPointerException();
 
         // initialize the list of codes that will be generated for the compression
         this.codes = new HashMap<Byte, String>();
@@ -64,25 +52,49 @@ public class Btree {
         // the Btree along with the compressed message
         this.transmit = null;
 
+        // sort the characters using the weights from the smallest (first element)
+        // to the biggest, then using their code (as a signed byte).
+        // key = weight (high bits) + code shifted from -128..127 to 0..255 (low 8 bits)
+        long[] keys = new long[256];
+        int n = 0;
+        for (int c = 0; c < 256; c++) {
+            if (histogram[c] != 0)
+                keys[n++] = ((long) histogram[c] << 8) | (c ^ 0x80);
+        }
+
+        // Get the number of characters in the dico
+        this.N = n;
+        if (this.N == 0) throw new NullPointerException();
+
+        Arrays.sort(keys, 0, n);
+
         // create a list of leaf nodes used to start merging them
         // merge the nodes with the smallest weights first
         // it's a forest of single nodes
-        for (Byte key : fDict.keySet()) {
-            Node e = new Node(key, fDict.get(key), null, null);
-            this.btree.add(e);
+        Node[] leaves = new Node[n];
+        for (int i = 0; i < n; i++) {
+            leaves[i] = new Node((byte) (keys[i] ^ 0x80), (int) (keys[i] >>> 8), null, null);
         }
 
-        // sort the list using the weights from the smallest (first element)
-        // to the last element (the biggest)
-        NodesComparator comparator = new NodesComparator();
-        Collections.sort(this.btree, comparator);
+        // keep merging the trees in the forest until we get only one root
+        this.root = Btree.merge(leaves);
 
+    }
 
-        // keep merging the tree in the forest until we get only one root
-        while (this.length() > 1){
-            this.merge();
-        }
+    /**
+     * Helper function for the HashMap constructor
+     *
+     * @param fDict frequency of each byte return as a hash dictionary
+     * @return frequency of each byte in an array
+     */
+    private static int[] toHistogram(HashMap<Byte, Integer> fDict){
+        if (fDict == null || fDict.isEmpty()) throw new NullPointerException();
 
+        int[] histogram = new int[256];
+        for (Byte key : fDict.keySet()) {
+            histogram[key & 0xFF] = fDict.get(key);
+        }
+        return histogram;
     }
 
 
@@ -92,39 +104,80 @@ public class Btree {
      * @return the number of trees in the forest
      */
     public int length(){
-        return this.btree.size();
+        return this.root == null ? 0 : 1;
     }
 
     /**
-     * merge two trees in the forest (the smallest ones)
-     * remove them for the forest but insert them as leafs of the new result node,
-     * than insert the result back into the forest (in the right position accoding to the weight)
+     * merge the trees in the forest (the smallest ones first) until only one is left.
+     * The two smallest trees are removed from the forest and become the leafs of a new
+     * node, which is put back into the forest before the trees of the same weight.
+     *
+     * The forest is kept in two queues sorted by weight (linear time):
+     * the leaves, sorted once, and the merged nodes, which are created with
+     * growing weights. The smallest tree is the first of one of the queues,
+     * a merged node goes first when the weights are equal. Merged nodes of the
+     * same weight are the last ones of their queue, the newest goes first.
+     *
+     * @param leaves the leaves sorted by weight then by code
+     * @return the root of the tree
      */
-    private void merge(){
-        // get the first two smallest elements
-        Node nodeA = this.btree.removeFirst();
-        Node nodeB = this.btree.removeFirst();
-
-        // merge the two nodes into one middle node.
-        // weight is the sum of the weights of the two nodes
-        // the code is not important (first element).
-        Node newNode = new Node((byte)0, nodeA.getWeight()+nodeB.getWeight(), nodeA, nodeB);
-
-
-        //Improve this code later by doing a Binary search!
-
-        // find the right position where to insert the new node
-        int index = 0;
-        for (Node node : btree) {
-            if (newNode.getWeight() <= node.getWeight()){
-                this.btree.add(index, newNode);
-                // check this code?! bad practice?
-                return;
+    private static Node merge(Node[] leaves){
+        int n = leaves.length;
+
+        // queue of the merged nodes: a linked list of indexes in merged
+        Node[] merged = new Node[n];
+        int[] next = new int[n];
+        int head = -1;
+        int tail = -1;
+        // first node of the run of equal weights at the end of the queue
+        // and the node before it (-1 if the run starts at head)
+        int runHead = -1;
+        int beforeRun = -1;
+
+        int leaf = 0;
+        Node[] nodes = new Node[2];
+        for (int count = 0; count < n - 1; count++) {
+
+            // get the first two smallest elements
+            for (int k = 0; k < 2; k++) {
+                if (head < 0 || (leaf < n && leaves[leaf].getWeight() < merged[head].getWeight())) {
+                    nodes[k] = leaves[leaf++];
+                } else {
+                    nodes[k] = merged[head];
+                    if (beforeRun == head) beforeRun = -1;
+                    if (runHead == head) runHead = next[head];
+                    head = next[head];
+                    if (head < 0) tail = -1;
+                }
+            }
+
+            // merge the two nodes into one middle node.
+            // weight is the sum of the weights of the two nodes
+            // the code is not important (first element).
+            Node newNode = new Node((byte)0, nodes[0].getWeight() + nodes[1].getWeight(), nodes[0], nodes[1]);
+            merged[count] = newNode;
+            next[count] = -1;
+
+            if (head < 0) {
+                // empty queue
+                head = tail = runHead = count;
+                beforeRun = -1;
+            } else if (merged[tail].getWeight() == newNode.getWeight()) {
+                // insert before the nodes of the same weight
+                next[count] = runHead;
+                if (beforeRun < 0) head = count;
+                else next[beforeRun] = count;
+                runHead = count;
+            } else {
+                // the biggest node, insert at the end
+                next[tail] = count;
+                beforeRun = tail;
+                tail = runHead = count;
             }
-            index++;
         }
-        // the biggest node, insert at the end
-        this.btree.addLast(newNode);
+
+        // one character: the leaf is the root
+        return n == 1 ? leaves[0] : merged[n - 2];
     }
 
 
@@ -143,7 +196,7 @@ public class Btree {
 
         if (this.transmit == null){
             this.transmit = new Stream();
-            this.preorder(this.btree.getFirst());
+            this.preorder(this.root);
         }
         return this.transmit;
     }
@@ -175,26 +228,33 @@ public class Btree {
      * @param stream
      */
 
-    private Iterator<Boolean> transmitIterator;
+    private BitReader reader;
     private int N; // number of characters in the trie (8 bits after the first 3bits)
     private int restN = 0; //used only by readTrie() to reconstitute the trie
 
     public Btree(Stream stream){
 
-        if (stream == null || stream.numberOfBits() < 8)
-            throw new NullPointerException();
+        this(stream == null ? null : new BitReader(stream));
 
         // save the trie in the object
         this.transmit = stream;
-        this.transmitIterator = this.transmit.iterator();
+    }
+
+    /**
+     * Rebuild the trie from the bits of a compressed message. The reader is
+     * left on the first bit of the compressed content, ready for expand()
+     *
+     * @param reader cursor on the first bit of a compressed message
+     */
+    public Btree(BitReader reader){
 
+        if (reader == null || reader.remaining() < 8)
+            throw new NullPointerException();
+
+        this.reader = reader;
 
         // read number of characters in the trie (8bits)
-        this.N = 0;
-        for (int i = 0; i < 8; i++) {
-            if (transmitIterator.next())
-                N = N | (0b10000000 >>> i);
-        }
+        this.N = reader.readBits(8);
 
         // (there is no empty trie) so we use 0 to represent the last byte
         // 2^8 = 256 (cases)
@@ -205,8 +265,7 @@ public class Btree {
         this.restN = N;
 
         // initialize the root for the Btrie
-        this.btree = new LinkedList<Node>();
-        this.btree.add(this.readTrie());
+        this.root = this.readTrie();
 
         // wrong trie
         if (this.restN != 0) throw new NullPointerException();
@@ -219,28 +278,15 @@ public class Btree {
 
         if (restN == 0) return null;
 
-        if (transmitIterator.hasNext()) {
-            if (transmitIterator.next()) {
-                Byte current = new Byte((byte) 0);
-                for (int i = 0; i < 8; i++){
-
-                    if (!transmitIterator.hasNext()) throw new NullPointerException();
-
-                    if (transmitIterator.next())
-                        current = (byte) (current | (0b10000000 >>> i));
-                    else
-                        current = (byte) (current & ~(0b10000000 >>> i));
-                }
-                this.restN--;
-                return new Node(current, 0, null, null);
-            }
-            Node left = this.readTrie();
-            Node right = this.readTrie();
-            return new Node((byte)0, 0, left, right);
-        } else {
-            //System.out.println("Error! Wrong trie");
-            throw new NullPointerException();
+        // readBit() throws when there is no more bits: wrong trie
+        if (reader.readBit()) {
+            byte current = (byte) reader.readBits(8);
+            this.restN--;
+            return new Node(current, 0, null, null);
         }
+        Node left = this.readTrie();
+        Node right = this.readTrie();
+        return new Node((byte)0, 0, left, right);
     }
 
     /**
@@ -250,48 +296,32 @@ public class Btree {
      * @return
      */
     public Stream expand(Stream compressedMsg){
-        // the bits of N and Btrie in the transmitIterator already traversed
+        // the bits of N and Btrie in the reader already traversed
         // N retrived and btrie built in the the constructor
 
         // empty message content is an error
-        if(!this.transmitIterator.hasNext()) throw new NullPointerException();
-
-        //traverse the btrie from the root
-        Node root = this.btree.getFirst();
+        if(this.reader.remaining() == 0) throw new NullPointerException();
 
         // Decompressed message
         Stream decompressedMsg = new Stream();
 
-        while(this.transmitIterator.hasNext()) {
-
-            Node x = root;
-            //if (x == null)  throw new NullPointerException();
-
-            // one node btrie
-            if (x.isLeaf()){
-                // one element in the trie (message equal "0" not "1")
-                if (this.transmitIterator.next()) throw new NullPointerException();
-            } else {
-                while(!x.isLeaf()) {
-
-                    if (!this.transmitIterator.hasNext()) throw new NullPointerException();
-
-                    if (this.transmitIterator.next())
-                        x = x.getRight();
-                    else
-                        x = x.getLeft();
-
-                }
-            }
-            // read the character at the leaf and append it to decompressedMsg
-            byte c = x.getCode();
-            decompressedMsg.addByte(c);
-        }
+        // decode the codes with lookup tables built from the btrie
+        HuffmanDecoder decoder = new HuffmanDecoder(this.getRoot());
+        decoder.decode(this.reader, decompressedMsg);
 
         // return the message after decompression
         return decompressedMsg;
     }
 
+    /**
+     * the root of the trie (the only tree left in the forest)
+     *
+     * @return the root node
+     */
+    Node getRoot(){
+        return this.root;
+    }
+
     /**
      * Print the forest. Each tree in the forest is printed in an indented manner
      * Showing the weight of each tree.
@@ -300,9 +330,7 @@ public class Btree {
     public void printbtree(){
         // print the list
         System.out.println("List:");
-        for (Node node : btree) {
-            this.printFromNode(node, 0);
-        }
+        this.printFromNode(this.root, 0);
         System.out.println("End");
     }
     /**
@@ -338,9 +366,9 @@ public class Btree {
         }else{
             //this.codes = {};
             if (this.N == 1){
-                this.codes.put(this.btree.getFirst().getCode(), "0");
+                this.codes.put(this.root.getCode(), "0");
             }else{
-                this.getCode(this.btree.getFirst(),"");
+                this.getCode(this.root,"");
             }
             return this.codes;
         }
@@ -362,6 +390,40 @@ public class Btree {
         }
     }
 
-}
-
+    /**
+     * return the length of the code of each byte (index 0 to 255 is the
+     * byte value & 0xFF). 0 if the byte is not in the trie
+     *
+     * @return int[256] of the code lengths
+     */
+    public int[] getCodeLengths(){
+        if (this.length() != 1){
+            System.out.println("Error! there is no single root");
+            throw new NullPointerException();
+        }
+        int[] lengths = new int[256];
+        if (this.N == 1){
+            // one element in the trie, its code is "0"
+            lengths[this.root.getCode() & 0xFF] = 1;
+        }else{
+            this.getCodeLength(this.root, 0, lengths);
+        }
+        return lengths;
+    }
+    /**
+     * helper function for getCodeLengths
+     *
+     * @param node
+     * @param depth
+     * @param lengths
+     */
+    private void getCodeLength(Node node, int depth, int[] lengths){
+        if (node.isLeaf()){
+            lengths[node.getCode() & 0xFF] = depth;
+        }else{
+            this.getCodeLength(node.getLeft(), depth + 1, lengths);
+            this.getCodeLength(node.getRight(), depth + 1, lengths);
+        }
+    }
 
+}
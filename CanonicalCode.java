@@ -0,0 +1,345 @@
+package com.simopr.smscompress.algorithms;
+
+/**
+ * Canonical prefix codes rebuilt from the code length of each character.
+ *
+ * The characters are sorted by code length, then by value, and receive
+ * consecutive codes: both sides only need the lengths to build the same
+ * codes, so the header sent with the message is much smaller than the
+ * shape of the trie sent by Btree.writeTrie().
+ *
+ * Header:
+ *      number of characters - 1                        (8bits)
+ *      list of characters                              (1bit flag + variable)
+ *          0: first character (8bits) then the gap to the next
+ *             character in Elias gamma code, for each other character
+ *          1: bitmap of the 256 characters (256bits)
+ *      smallest length - 1                             (3bits)
+ *      number of bits w of (length - smallest length)  (3bits)
+ *      length - smallest length of each character      (w bits each)
+ *
+ * A code of only one character is "0" like in a one node trie.
+ */
+public class CanonicalCode {
+
+    // longest code supported, codes are stored in a long
+    public static final int MAX_LENGTH = 57;
+
+    // code length of each character, 0 if the character is not in the code
+    private final int[] lengths;
+
+    // code of each character, right aligned
+    private final long[] codes;
+
+    // number of characters in the code
+    private final int count;
+
+    // characters sorted by code length then by value
+    private final int[] sorted;
+
+    // number of codes of each length
+    private final int[] lengthCount;
+
+    /**
+     * Build the canonical codes from the code length of each character.
+     * The lengths must describe a complete prefix code.
+     *
+     * @param lengths code length of the 256 characters (0 if not used)
+     */
+    public CanonicalCode(int[] lengths) {
+        if (lengths == null || lengths.length != 256) throw new NullPointerException();
+
+        this.lengths = lengths.clone();
+        this.codes = new long[256];
+
+        // number of codes of each length
+        int[] lengthCount = new int[MAX_LENGTH + 1];
+        this.lengthCount = lengthCount;
+        int n = 0;
+        for (int c = 0; c < 256; c++) {
+            int length = this.lengths[c];
+            if (length < 0 || length > MAX_LENGTH) throw new NullPointerException();
+            if (length > 0) {
+                lengthCount[length]++;
+                n++;
+            }
+        }
+        if (n == 0) throw new NullPointerException();
+        this.count = n;
+
+        // a single character is coded "0"
+        if (n == 1) {
+            if (lengthCount[1] != 1) throw new NullPointerException();
+        } else {
+            // the codes must fill the whole tree (Kraft sum equal to 1)
+            long kraft = 0;
+            for (int length = 1; length <= MAX_LENGTH; length++)
+                kraft += (long) lengthCount[length] << (MAX_LENGTH - length);
+            if (kraft != 1L << MAX_LENGTH) throw new NullPointerException();
+        }
+
+        // first position of each length in the sorted characters
+        int[] start = new int[MAX_LENGTH + 2];
+        for (int length = 1; length <= MAX_LENGTH; length++)
+            start[length + 1] = start[length] + lengthCount[length];
+
+        this.sorted = new int[n];
+        for (int c = 0; c < 256; c++)
+            if (this.lengths[c] > 0)
+                this.sorted[start[this.lengths[c]]++] = c;
+
+        // consecutive codes, shifted left each time the length grows
+        long code = 0;
+        int previous = this.lengths[this.sorted[0]];
+        for (int c : this.sorted) {
+            code <<= this.lengths[c] - previous;
+            previous = this.lengths[c];
+            this.codes[c] = code++;
+        }
+    }
+
+    /**
+     * the code length of each character of a Btree
+     *
+     * @param btree a Btree built from the frequencies of a message
+     * @return canonical codes with the same lengths as the Btree
+     */
+    public static CanonicalCode fromBtree(Btree btree) {
+        return new CanonicalCode(btree.getCodeLengths());
+    }
+
+    /**
+     * the code lengths of the characters of a message, limited to maxLength
+     *
+     * @param histogram frequency of each byte (see Compression.getHistogram)
+     * @param maxLength longest code allowed
+     * @return canonical codes no longer than maxLength
+     */
+    public static CanonicalCode fromHistogram(int[] histogram, int maxLength) {
+        return new CanonicalCode(LengthLimitedCode.getCodeLengths(histogram, maxLength));
+    }
+
+    /**
+     * number of characters in the code
+     *
+     * @return number of characters with a code
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * the code length of each character, 0 if the character has no code
+     *
+     * @return 256 lengths (shared, do not modify)
+     */
+    int[] getLengths() {
+        return this.lengths;
+    }
+
+    /**
+     * the code of each character, right aligned on its length
+     *
+     * @return 256 codes (shared, do not modify)
+     */
+    long[] getCodes() {
+        return this.codes;
+    }
+
+    /**
+     * Read one code bit by bit, without building a trie or a decoder (see
+     * MessageValidator): the codes of a length are consecutive, so a code
+     * is found when it is between the first code of its length and the
+     * first code plus the number of codes of the length
+     *
+     * @param reader cursor on the first bit of a code
+     * @return the character of the code, -1 if there is no code or if the
+     * message ends in the middle of the code
+     */
+    int tryDecodeSymbol(BitReader reader) {
+        long code = 0;
+        long first = 0;
+        int index = 0;
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            if (reader.remaining() == 0) return -1;
+            code = (code << 1) | (reader.readBit() ? 1 : 0);
+            int count = this.lengthCount[length];
+            // a single character has the code "0", there is no code "1..."
+            if (code >= first && code - first < count) return this.sorted[index + (int) (code - first)];
+            index += count;
+            first = (first + count) << 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Build the trie of the codes. In a canonical code the leaves from
+     * left to right are the characters sorted by length then by value.
+     *
+     * @return the root of the trie
+     */
+    public Node toTree() {
+        if (this.count == 1)
+            return new Node((byte) this.sorted[0], 0, null, null);
+        int[] next = {0};
+        return this.buildTree(0, next);
+    }
+
+    /**
+     * Helper function for toTree
+     *
+     * @param depth depth of the node to build
+     * @param next index of the next leaf in sorted
+     */
+    private Node buildTree(int depth, int[] next) {
+        int c = this.sorted[next[0]];
+        if (this.lengths[c] == depth) {
+            next[0]++;
+            return new Node((byte) c, 0, null, null);
+        }
+        Node left = this.buildTree(depth + 1, next);
+        Node right = this.buildTree(depth + 1, next);
+        return new Node((byte) 0, 0, left, right);
+    }
+
+    /**
+     * Add the header describing the code to the stream
+     *
+     * @param stream where to write the header
+     */
+    public void writeHeader(Stream stream) {
+        stream.addBits(this.count - 1, 8);
+
+        // list of the characters or bitmap, whichever is smaller
+        if (this.listBits() < 256) {
+            stream.addBit(false);
+            int previous = -1;
+            for (int c = 0; c < 256; c++) {
+                if (this.lengths[c] == 0) continue;
+                if (previous < 0)
+                    stream.addBits(c, 8);
+                else
+                    writeGamma(stream, c - previous);
+                previous = c;
+            }
+        } else {
+            stream.addBit(true);
+            for (int c = 0; c < 256; c++)
+                stream.addBit(this.lengths[c] != 0);
+        }
+
+        // lengths relative to the smallest one
+        int min = this.minLength();
+        int width = bitsFor(this.maxLength() - min);
+        stream.addBits(min - 1, 3);
+        stream.addBits(width, 3);
+        for (int c = 0; c < 256; c++)
+            if (this.lengths[c] != 0)
+                stream.addBits(this.lengths[c] - min, width);
+    }
+
+    /**
+     * Read a header written by writeHeader() and rebuild the codes
+     *
+     * @param reader cursor on the first bit of the header
+     * @return the canonical codes of the header
+     */
+    public static CanonicalCode readHeader(BitReader reader) {
+        int n = reader.readBits(8) + 1;
+
+        int[] lengths = new int[256];
+        int[] characters = new int[n];
+        if (!reader.readBit()) {
+            int c = reader.readBits(8);
+            characters[0] = c;
+            for (int i = 1; i < n; i++) {
+                c += readGamma(reader);
+                if (c > 255) throw new NullPointerException();
+                characters[i] = c;
+            }
+        } else {
+            int i = 0;
+            for (int c = 0; c < 256; c++) {
+                if (reader.readBit()) {
+                    if (i == n) throw new NullPointerException();
+                    characters[i++] = c;
+                }
+            }
+            if (i != n) throw new NullPointerException();
+        }
+
+        int min = reader.readBits(3) + 1;
+        int width = reader.readBits(3);
+        for (int c : characters)
+            lengths[c] = min + reader.readBits(width);
+
+        return new CanonicalCode(lengths);
+    }
+
+    /**
+     * number of bits of the header written by writeHeader()
+     *
+     * @return size of the header in bits
+     */
+    public int headerBits() {
+        int width = bitsFor(this.maxLength() - this.minLength());
+        return 8 + 1 + Math.min(this.listBits(), 256) + 3 + 3 + width * this.count;
+    }
+
+    /**
+     * number of bits used to list the characters with their gaps
+     */
+    private int listBits() {
+        int bits = 0;
+        int previous = -1;
+        for (int c = 0; c < 256; c++) {
+            if (this.lengths[c] == 0) continue;
+            bits += previous < 0 ? 8 : gammaBits(c - previous);
+            previous = c;
+        }
+        return bits;
+    }
+
+    private int minLength() {
+        int min = Integer.MAX_VALUE;
+        for (int length : this.lengths)
+            if (length != 0 && length < min) min = length;
+        return min;
+    }
+
+    private int maxLength() {
+        int max = 0;
+        for (int length : this.lengths)
+            if (length > max) max = length;
+        return max;
+    }
+
+    /**
+     * number of bits needed to write value (0 for 0)
+     */
+    private static int bitsFor(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Elias gamma code of value (at least 1): as many zeros as the
+     * bits of value after the first one, then value in binary
+     */
+    private static void writeGamma(Stream stream, int value) {
+        int bits = bitsFor(value);
+        stream.addBits(0, bits - 1);
+        stream.addBits(value, bits);
+    }
+
+    private static int readGamma(BitReader reader) {
+        int zeros = 0;
+        while (!reader.readBit()) {
+            if (++zeros > 8) throw new NullPointerException();
+        }
+        return (1 << zeros) | reader.readBits(zeros);
+    }
+
+    private static int gammaBits(int value) {
+        return 2 * bitsFor(value) - 1;
+    }
+}
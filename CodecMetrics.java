@@ -0,0 +1,448 @@
+package com.simopr.smscompress.algorithms;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Counters and latencies of Compression.compress, decompress and
+ * checkDecompressible (see Compression.getMetrics()).
+ *
+ * Nothing is measured until the metrics are enabled: the codec only reads
+ * a volatile flag. When enabled, each call is timed and added to counters
+ * and histograms split in stripes (LongAdder, LatencyHistogram), so the
+ * threads compressing at the same time do not wait for each other.
+ *
+ * The size of the header of each compressed message (format, N and trie,
+ * canonical lengths or codebook number) is counted apart from the payload,
+ * to see what the trie costs.
+ *
+ * JFR events can be emitted too, one per call, when a recording enables
+ * them (see setEventsEnabled).
+ */
+public class CodecMetrics {
+
+    private volatile boolean enabled = false;
+    private volatile boolean events = false;
+
+    private final LongAdder compressions = new LongAdder();
+    private final LongAdder grown = new LongAdder();
+    private final LongAdder inputBits = new LongAdder();
+    private final LongAdder outputBits = new LongAdder();
+    private final LongAdder headerBits = new LongAdder();
+    private final LatencyHistogram compressLatency = new LatencyHistogram();
+
+    private final LongAdder decompressions = new LongAdder();
+    private final LongAdder decompressFailures = new LongAdder();
+    private final LatencyHistogram decompressLatency = new LatencyHistogram();
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder checksCompressed = new LongAdder();
+    private final LatencyHistogram checkLatency = new LatencyHistogram();
+
+    /**
+     * @return true if the calls are measured
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Start or stop measuring the calls, the counters are kept
+     *
+     * @param enabled true to measure the calls
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Emit a JFR event for each measured call (only when the metrics are
+     * enabled, and when a JFR recording enables the events)
+     *
+     * @param events true to emit the events
+     */
+    public void setEventsEnabled(boolean events) {
+        this.events = events;
+    }
+
+    /**
+     * Count a compression
+     *
+     * @param format format of the compressed message
+     * @param inputBytes number of bytes of the message
+     * @param bits number of bits of the compressed message
+     * @param header number of bits of its header
+     * @param nanos duration of the compression
+     */
+    void recordCompress(int format, int inputBytes, int bits, int header, long nanos) {
+        this.compressions.increment();
+        if (bits > 8L * inputBytes) this.grown.increment();
+        this.inputBits.add(8L * inputBytes);
+        this.outputBits.add(bits);
+        this.headerBits.add(header);
+        this.compressLatency.record(nanos);
+
+        if (this.events) {
+            CompressEvent event = new CompressEvent();
+            if (event.shouldCommit()) {
+                event.format = format;
+                event.inputBytes = inputBytes;
+                event.outputBits = bits;
+                event.headerBits = header;
+                event.latency = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Count a decompression
+     *
+     * @param compressed the compressed message (may be null)
+     * @param message the decompressed message, null if it failed
+     * @param nanos duration of the decompression
+     */
+    void recordDecompress(Stream compressed, Stream message, long nanos) {
+        this.recordDecompress(compressed == null ? 0 : compressed.numberOfBits(),
+                message == null ? -1 : message.getBytePosition(), nanos);
+    }
+
+    /**
+     * Count a decompression
+     *
+     * @param inputBits number of bits of the compressed message
+     * @param outputBytes number of bytes of the message, -1 if it failed
+     * @param nanos duration of the decompression
+     */
+    void recordDecompress(int inputBits, int outputBytes, long nanos) {
+        this.decompressions.increment();
+        if (outputBytes < 0) this.decompressFailures.increment();
+        this.decompressLatency.record(nanos);
+
+        if (this.events) {
+            DecompressEvent event = new DecompressEvent();
+            if (event.shouldCommit()) {
+                event.inputBits = inputBits;
+                event.outputBytes = outputBytes;
+                event.latency = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Count a check of checkDecompressible
+     *
+     * @param compressed result of the check
+     * @param nanos duration of the check
+     */
+    void recordCheck(boolean compressed, long nanos) {
+        this.checks.increment();
+        if (compressed) this.checksCompressed.increment();
+        this.checkLatency.record(nanos);
+    }
+
+    /**
+     * Copy the counters. The calls made during the copy may be partly counted.
+     *
+     * @return the counters and latencies so far
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Set all the counters to zero
+     */
+    public void reset() {
+        this.compressions.reset();
+        this.grown.reset();
+        this.inputBits.reset();
+        this.outputBits.reset();
+        this.headerBits.reset();
+        this.compressLatency.reset();
+        this.decompressions.reset();
+        this.decompressFailures.reset();
+        this.decompressLatency.reset();
+        this.checks.reset();
+        this.checksCompressed.reset();
+        this.checkLatency.reset();
+    }
+
+    /**
+     * The counters at a time
+     */
+    public static final class Snapshot {
+
+        private final long compressions;
+        private final long grown;
+        private final long inputBits;
+        private final long outputBits;
+        private final long headerBits;
+        private final LatencyHistogram.Snapshot compressLatency;
+        private final long decompressions;
+        private final long decompressFailures;
+        private final LatencyHistogram.Snapshot decompressLatency;
+        private final long checks;
+        private final long checksCompressed;
+        private final LatencyHistogram.Snapshot checkLatency;
+
+        private Snapshot(CodecMetrics metrics) {
+            this.compressions = metrics.compressions.sum();
+            this.grown = metrics.grown.sum();
+            this.inputBits = metrics.inputBits.sum();
+            this.outputBits = metrics.outputBits.sum();
+            this.headerBits = metrics.headerBits.sum();
+            this.compressLatency = metrics.compressLatency.snapshot();
+            this.decompressions = metrics.decompressions.sum();
+            this.decompressFailures = metrics.decompressFailures.sum();
+            this.decompressLatency = metrics.decompressLatency.snapshot();
+            this.checks = metrics.checks.sum();
+            this.checksCompressed = metrics.checksCompressed.sum();
+            this.checkLatency = metrics.checkLatency.snapshot();
+        }
+
+        /**
+         * @return number of messages compressed
+         */
+        public long compressions() {
+            return this.compressions;
+        }
+
+        /**
+         * @return number of compressed messages bigger than the message
+         */
+        public long grown() {
+            return this.grown;
+        }
+
+        /**
+         * @return bits of the messages compressed
+         */
+        public long inputBits() {
+            return this.inputBits;
+        }
+
+        /**
+         * @return bits of the compressed messages (header and payload)
+         */
+        public long outputBits() {
+            return this.outputBits;
+        }
+
+        /**
+         * @return bits of the headers of the compressed messages
+         */
+        public long headerBits() {
+            return this.headerBits;
+        }
+
+        /**
+         * @return bits of the compressed characters of the compressed messages
+         */
+        public long payloadBits() {
+            return this.outputBits - this.headerBits;
+        }
+
+        /**
+         * @return compressed bits / message bits, 0 if nothing was compressed
+         */
+        public double ratio() {
+            return this.inputBits == 0 ? 0 : (double) this.outputBits / this.inputBits;
+        }
+
+        public LatencyHistogram.Snapshot compressLatency() {
+            return this.compressLatency;
+        }
+
+        /**
+         * @return number of calls of decompress
+         */
+        public long decompressions() {
+            return this.decompressions;
+        }
+
+        /**
+         * @return number of calls of decompress that returned null
+         */
+        public long decompressFailures() {
+            return this.decompressFailures;
+        }
+
+        public LatencyHistogram.Snapshot decompressLatency() {
+            return this.decompressLatency;
+        }
+
+        /**
+         * @return number of calls of checkDecompressible
+         */
+        public long checks() {
+            return this.checks;
+        }
+
+        /**
+         * @return number of calls of checkDecompressible that returned true
+         */
+        public long checksCompressed() {
+            return this.checksCompressed;
+        }
+
+        public LatencyHistogram.Snapshot checkLatency() {
+            return this.checkLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "compress: " + this.compressions + " messages, " + this.grown + " grown, ratio "
+                    + String.format("%.3f", this.ratio()) + ", header " + this.headerBits + " bits, payload "
+                    + this.payloadBits() + " bits, " + this.compressLatency
+                    + "\ndecompress: " + this.decompressions + " messages, " + this.decompressFailures + " failed, "
+                    + this.decompressLatency
+                    + "\ncheck: " + this.checks + " messages, " + this.checksCompressed + " compressed, "
+                    + this.checkLatency;
+        }
+    }
+
+    @Name("com.simopr.smscompress.Compress")
+    @Label("SMS Compress")
+    @Category("SMS Compression")
+    @Description("A message compressed by Compression.compress")
+    private static class CompressEvent extends Event {
+        @Label("Format")
+        int format;
+        @Label("Message Bytes")
+        int inputBytes;
+        @Label("Compressed Bits")
+        int outputBits;
+        @Label("Header Bits")
+        int headerBits;
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("com.simopr.smscompress.Decompress")
+    @Label("SMS Decompress")
+    @Category("SMS Compression")
+    @Description("A message decompressed by Compression.decompress")
+    private static class DecompressEvent extends Event {
+        @Label("Compressed Bits")
+        int inputBits;
+        @Label("Message Bytes")
+        @Description("-1 when the message could not be decompressed")
+        int outputBytes;
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     */
+    public static void main(String[] args) throws InterruptedException {
+
+        // the buckets of the histograms
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(value);
+            assert(bucket < LatencyHistogram.BUCKETS);
+            assert(LatencyHistogram.highest(bucket) >= value);
+            assert(value == 0 || LatencyHistogram.highest(bucket - 1) < value);
+            assert(LatencyHistogram.highest(bucket) - value <= value / 8);
+        }
+
+        String letters = "aaaaaeeeeiioouu bcdfghlmnprst.,0123456789é";
+        Stream[] messages = new Stream[1000];
+        Random random = new Random(13);
+        for (int i = 0; i < messages.length; i++) {
+            StringBuilder sms = new StringBuilder();
+            int length = 1 + random.nextInt(160);
+            for (int j = 0; j < length; j++)
+                sms.append(letters.charAt(random.nextInt(letters.length())));
+            messages[i] = new Stream(sms.toString());
+        }
+
+        // 32 threads at once, every call is counted
+        CodecMetrics metrics = Compression.getMetrics();
+        for (boolean enabled : new boolean[]{false, true, false, true}) {
+            metrics.reset();
+            metrics.setEnabled(enabled);
+            int threads = 32;
+            int rounds = 4;
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int format = t % 4;
+                workers[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int r = 0; r < rounds; r++)
+                        for (Stream message : messages) {
+                            Stream compressed = Compression.compress(message, format);
+                            assert(Compression.decompress(compressed).equals(message));
+                            assert(Compression.checkDecompressible(compressed));
+                        }
+                });
+                workers[t].start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) worker.join();
+            long time = System.nanoTime() - begin;
+
+            Snapshot snapshot = metrics.snapshot();
+            long calls = (long) threads * rounds * messages.length;
+            assert(snapshot.compressions() == (enabled ? calls : 0));
+            assert(snapshot.decompressions() == (enabled ? calls : 0));
+            assert(snapshot.checksCompressed() == (enabled ? calls : 0));
+            assert(snapshot.compressLatency().count() == snapshot.compressions());
+            assert(snapshot.headerBits() < snapshot.outputBits() || !enabled);
+            System.out.println((enabled ? "enabled " : "disabled ") + time / 1000000 + "ms");
+            if (enabled) System.out.println(snapshot);
+        }
+
+        // the failures and the messages that grow
+        metrics.reset();
+        assert(Compression.decompress(new Stream("not compressed")) == null);
+        Compression.compress(new Stream("a"));
+        Snapshot snapshot = metrics.snapshot();
+        assert(snapshot.decompressFailures() == 1);
+        assert(snapshot.grown() == 1);
+
+        // the header sizes given by compress are the headers written
+        for (int format = Compression.FORMAT_TRIE; format <= Compression.FORMAT_ADAPTIVE; format++) {
+            for (int i = 0; i < 50; i++) {
+                metrics.reset();
+                Stream compressed = Compression.compress(messages[i], format);
+                snapshot = metrics.snapshot();
+                assert(snapshot.headerBits() == Compression.headerBits(compressed));
+                assert(snapshot.outputBits() == compressed.numberOfBits());
+            }
+        }
+
+        // the batches are counted too
+        metrics.reset();
+        java.util.List<byte[]> batch = new java.util.ArrayList<>();
+        for (Stream message : messages)
+            batch.add(message.getBytesWithoutLastPaddingByte());
+        java.util.List<byte[]> compressedBatch = new java.util.ArrayList<>();
+        for (BatchCompression.Result result : new BatchCompression().compressBatch(batch))
+            compressedBatch.add(result.getBytes());
+        new BatchCompression().decompressBatch(compressedBatch);
+        snapshot = metrics.snapshot();
+        assert(snapshot.compressions() == messages.length);
+        assert(snapshot.decompressions() == messages.length);
+        metrics.setEnabled(false);
+    }
+}
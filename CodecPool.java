@@ -0,0 +1,210 @@
+package com.simopr.smscompress.algorithms;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of HuffmanCodec, shared by all the threads without locks
+ * (see Compression.compress(ByteBuffer, ByteBuffer)).
+ *
+ * A codec per thread (ThreadLocal) is not a good fit when the messages are
+ * compressed by many short lived threads, or by virtual threads: each new
+ * thread builds a codec for a few messages and the arrays are garbage.
+ * The pool keeps at most capacity codecs and lends them to any thread.
+ *
+ * The codecs are in slots of an array. acquire() takes a codec out of a
+ * slot (compareAndSet to null), release() puts it back in an empty slot,
+ * or drops it when the pool is full. A thread starts looking at a slot
+ * chosen by its id, so the threads rarely try the same slots. No thread
+ * ever waits: when the pool is empty a new codec is created.
+ */
+public class CodecPool {
+
+    private final AtomicReferenceArray<HuffmanCodec> slots;
+
+    // codecs created because the pool was empty
+    private final AtomicInteger created = new AtomicInteger();
+
+    /**
+     * A pool of about twice the processors
+     */
+    public CodecPool() {
+        this(2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param capacity number of codecs kept at most, rounded up to a power of 2
+     */
+    public CodecPool(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException();
+        // a power of 2 to choose the first slot with a mask
+        this.slots = new AtomicReferenceArray<>(Integer.highestOneBit(capacity * 2 - 1));
+    }
+
+    /**
+     * Take a codec from the pool, or create one when the pool is empty.
+     * The codec belongs to the caller until it is released.
+     *
+     * @return a codec used by no other thread
+     */
+    public HuffmanCodec acquire() {
+        int mask = this.slots.length() - 1;
+        int start = this.start();
+        for (int i = 0; i <= mask; i++) {
+            int slot = (start + i) & mask;
+            HuffmanCodec codec = this.slots.get(slot);
+            if (codec != null && this.slots.compareAndSet(slot, codec, null)) return codec;
+        }
+        this.created.incrementAndGet();
+        return new HuffmanCodec();
+    }
+
+    /**
+     * Give back a codec taken with acquire(), it is dropped when the pool is full.
+     * The codec must not be used after.
+     *
+     * @param codec the codec to give back
+     */
+    public void release(HuffmanCodec codec) {
+        if (codec == null) throw new NullPointerException();
+        int mask = this.slots.length() - 1;
+        int start = this.start();
+        for (int i = 0; i <= mask; i++) {
+            int slot = (start + i) & mask;
+            if (this.slots.get(slot) == null && this.slots.compareAndSet(slot, null, codec)) return;
+        }
+    }
+
+    /**
+     * number of codecs in the pool now
+     *
+     * @return codecs waiting to be acquired
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < this.slots.length(); i++)
+            if (this.slots.get(i) != null) size++;
+        return size;
+    }
+
+    /**
+     * number of codecs kept at most
+     *
+     * @return number of slots of the pool
+     */
+    public int capacity() {
+        return this.slots.length();
+    }
+
+    /**
+     * number of codecs created since the pool was created
+     *
+     * @return codecs created because the pool was empty
+     */
+    public int created() {
+        return this.created.get();
+    }
+
+    /**
+     * first slot looked at by the current thread
+     */
+    private int start() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return h >>> 16;
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     */
+    public static void main(String[] args) throws InterruptedException {
+
+        // bounded: the codecs released when the pool is full are dropped
+        CodecPool pool = new CodecPool(3);
+        assert(pool.capacity() == 4);
+        HuffmanCodec[] codecs = new HuffmanCodec[6];
+        for (int i = 0; i < codecs.length; i++)
+            codecs[i] = pool.acquire();
+        assert(pool.created() == 6);
+        for (HuffmanCodec codec : codecs)
+            pool.release(codec);
+        assert(pool.size() == 4);
+        HuffmanCodec first = pool.acquire();
+        pool.release(first);
+        assert(pool.acquire() == first);
+        pool.release(first);
+
+        // many threads: a codec is never used by two threads at once
+        String letters = "aaaaaeeeeiioouu bcdfghlmnprst.,0123456789é";
+        Stream[] messages = new Stream[200];
+        Random random = new Random(21);
+        for (int i = 0; i < messages.length; i++) {
+            StringBuilder sms = new StringBuilder();
+            int length = 1 + random.nextInt(160);
+            for (int j = 0; j < length; j++)
+                sms.append(letters.charAt(random.nextInt(letters.length())));
+            messages[i] = new Stream(sms.toString());
+        }
+
+        pool = new CodecPool(8);
+        CodecPool shared = pool;
+        Set<HuffmanCodec> inUse = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        int threads = 64;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int format = t % 4;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Stream compressed = new Stream();
+                Stream decompressed = new Stream();
+                for (int r = 0; r < 20; r++) {
+                    for (Stream message : messages) {
+                        HuffmanCodec codec = shared.acquire();
+                        assert(inUse.add(codec));
+                        codec.compress(message, compressed, format);
+                        assert(compressed.equals(Compression.compress(message, format)));
+                        assert(codec.decompress(compressed, decompressed) == message.getBytePosition());
+                        assert(decompressed.equals(message));
+                        assert(inUse.remove(codec));
+                        shared.release(codec);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+        assert(pool.size() <= pool.capacity());
+        System.out.println(threads + " threads, " + pool.created() + " codecs created, " + pool.size() + " in the pool");
+
+        // steady state: a codec and two Streams reused, nothing allocated
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        Stream compressed = new Stream();
+        Stream decompressed = new Stream();
+        for (int warmup = 0; warmup < 3; warmup++) {
+            long allocated = bean.getThreadAllocatedBytes(id);
+            for (int r = 0; r < 200; r++) {
+                for (Stream message : messages) {
+                    HuffmanCodec codec = pool.acquire();
+                    codec.compress(message, compressed, Compression.FORMAT_CANONICAL);
+                    codec.decompress(compressed, decompressed);
+                    pool.release(codec);
+                }
+            }
+            long bytes = (bean.getThreadAllocatedBytes(id) - allocated) / (200L * messages.length);
+            System.out.println("allocated per message: " + bytes + " bytes");
+        }
+    }
+}
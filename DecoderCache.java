@@ -0,0 +1,334 @@
+package com.simopr.smscompress.algorithms;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decoders already built, found again with the bits of the header of the
+ * message (N + trie, or the canonical header).
+ *
+ * The messages of a same sender often start with the same header: instead of
+ * rebuilding the trie and the tables of the decoder for each message, the
+ * header bits are looked up in the cache and the decoding jumps straight to
+ * the compressed content.
+ *
+ * The cache is split in stripes, each one a small LRU map with its own lock,
+ * so that the threads decompressing at the same time rarely wait for each
+ * other. The decoders are immutable and shared between the threads.
+ */
+public class DecoderCache {
+
+    // number of decoders kept by default
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // number of LRU maps (a power of 2)
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity maximum number of decoders kept
+     */
+    public DecoderCache(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException();
+        int stripeCapacity = (capacity + STRIPES - 1) / STRIPES;
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            this.stripes[i] = new Stripe(stripeCapacity);
+    }
+
+    /**
+     * Get the decoder of the trie starting at the reader (N + trie, see
+     * Btree(BitReader)), building it when it is not in the cache.
+     * The reader is left on the first bit of the compressed content.
+     *
+     * @param reader cursor on the first bit of the header
+     * @return the decoder of the trie
+     */
+    public HuffmanDecoder getTrieDecoder(BitReader reader) {
+        int start = reader.position();
+        int end = skipTrie(reader);
+        if (end < 0) throw new NullPointerException();
+
+        HeaderKey key = HeaderKey.read(Compression.FORMAT_TRIE, reader, start, end);
+        HuffmanDecoder decoder = this.lookup(key);
+        if (decoder != null) return decoder;
+
+        reader.seek(start);
+        decoder = new HuffmanDecoder(new Btree(reader).getRoot());
+        this.store(key, decoder);
+        return decoder;
+    }
+
+    /**
+     * Get the decoder of the canonical header starting at the reader (see
+     * CanonicalCode.readHeader()), building it when it is not in the cache.
+     * The reader is left on the first bit of the compressed content.
+     *
+     * @param reader cursor on the first bit of the header
+     * @return the decoder of the canonical codes
+     */
+    public HuffmanDecoder getCanonicalDecoder(BitReader reader) {
+        int start = reader.position();
+        int end = skipCanonicalHeader(reader);
+        if (end < 0) throw new NullPointerException();
+
+        HeaderKey key = HeaderKey.read(Compression.FORMAT_CANONICAL, reader, start, end);
+        HuffmanDecoder decoder = this.lookup(key);
+        if (decoder != null) return decoder;
+
+        // only the headers not in the cache are parsed and checked
+        reader.seek(start);
+        decoder = new HuffmanDecoder(CanonicalCode.readHeader(reader).toTree());
+        this.store(key, decoder);
+        return decoder;
+    }
+
+    /**
+     * Get the decoder of the header between start and end if it is in the
+     * cache, for the messages that may not be compressed (see
+     * MessageValidator): nothing is counted and the order of the least
+     * recently used decoders does not change. The reader is left at end.
+     *
+     * @param format FORMAT_TRIE or FORMAT_CANONICAL
+     * @param reader the message
+     * @param start first bit of the header
+     * @param end first bit after the header (see skipTrie and skipCanonicalHeader)
+     * @return the decoder, null if the header is not in the cache
+     */
+    HuffmanDecoder peek(int format, BitReader reader, int start, int end) {
+        HeaderKey key = HeaderKey.read(format, reader, start, end);
+        Stripe stripe = this.stripeOf(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    /**
+     * number of headers found in the cache
+     *
+     * @return number of hits since the cache was created or cleared
+     */
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * number of headers not found in the cache
+     *
+     * @return number of misses since the cache was created or cleared
+     */
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * number of decoders in the cache
+     *
+     * @return number of decoders kept
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Remove all the decoders and reset the counters
+     */
+    public void clear() {
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+        this.hits.reset();
+        this.misses.reset();
+    }
+
+    private HuffmanDecoder lookup(HeaderKey key) {
+        Stripe stripe = this.stripeOf(key);
+        HuffmanDecoder decoder;
+        synchronized (stripe) {
+            decoder = stripe.use(key);
+        }
+        if (decoder != null) this.hits.increment();
+        else this.misses.increment();
+        return decoder;
+    }
+
+    private void store(HeaderKey key, HuffmanDecoder decoder) {
+        Stripe stripe = this.stripeOf(key);
+        synchronized (stripe) {
+            stripe.put(key, decoder);
+        }
+    }
+
+    private Stripe stripeOf(HeaderKey key) {
+        int h = key.hash;
+        return this.stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Move the reader after the trie without building it, the same way
+     * Btree(BitReader) reads it: a 0 is an internal node with two children,
+     * a 1 is a leaf followed by its character, and the reading stops when
+     * the N characters have been read.
+     *
+     * @return position of the first bit after the trie, -1 if the trie is wrong
+     */
+    static int skipTrie(BitReader reader) {
+        if (reader.remaining() < 8) return -1;
+        int n = reader.readBits(8);
+        if (n == 0) n = 256;
+
+        // nodes still to read
+        int pending = 1;
+        while (pending > 0 && n > 0) {
+            if (reader.remaining() == 0) return -1;
+            pending--;
+            if (reader.readBit()) {
+                if (reader.remaining() < 8) return -1;
+                reader.skip(8);
+                n--;
+            } else {
+                pending += 2;
+            }
+        }
+
+        // wrong trie
+        if (n != 0) return -1;
+        return reader.position();
+    }
+
+    /**
+     * Move the reader after a canonical header without building the codes,
+     * the same way CanonicalCode.readHeader() reads it. The lengths are not
+     * checked: a header is checked when its decoder is built.
+     *
+     * @return position of the first bit after the header, -1 if the header is wrong
+     */
+    static int skipCanonicalHeader(BitReader reader) {
+        if (reader.remaining() < 9) return -1;
+        int n = reader.readBits(8) + 1;
+
+        if (!reader.readBit()) {
+            // first character, then the gaps in Elias gamma
+            if (reader.remaining() < 8) return -1;
+            int c = reader.readBits(8);
+            for (int i = 1; i < n; i++) {
+                int zeros = 0;
+                while (true) {
+                    if (reader.remaining() == 0) return -1;
+                    if (reader.readBit()) break;
+                    if (++zeros > 8) return -1;
+                }
+                if (reader.remaining() < zeros) return -1;
+                c += (1 << zeros) | reader.readBits(zeros);
+                if (c > 255) return -1;
+            }
+        } else {
+            // bitmap of the 256 characters
+            if (reader.remaining() < 256) return -1;
+            int count = 0;
+            for (int i = 0; i < 256; i += 32)
+                count += Integer.bitCount(reader.readBits(32));
+            if (count != n) return -1;
+        }
+
+        // min, width, then the lengths
+        if (reader.remaining() < 6) return -1;
+        reader.skip(3);
+        int width = reader.readBits(3);
+        if (reader.remaining() < n * width) return -1;
+        reader.skip(n * width);
+        return reader.position();
+    }
+
+    /**
+     * Least recently used decoders of a stripe, kept in insertion order so
+     * that get() does not move anything: a decoder used by a decompression
+     * is inserted again as the most recent one
+     */
+    private static class Stripe extends LinkedHashMap<HeaderKey, HuffmanDecoder> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, false);
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return the decoder of the key, now the most recently used, null if not in the stripe
+         */
+        HuffmanDecoder use(HeaderKey key) {
+            HuffmanDecoder decoder = this.remove(key);
+            if (decoder != null) this.put(key, decoder);
+            return decoder;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<HeaderKey, HuffmanDecoder> eldest) {
+            return this.size() > this.capacity;
+        }
+    }
+
+    /**
+     * The bits of a header copied from the message, aligned on the first bit
+     */
+    private static final class HeaderKey {
+
+        private final int format;
+        private final byte[] bits;
+        private final int numberOfBits;
+        private final int hash;
+
+        private HeaderKey(int format, byte[] bits, int numberOfBits) {
+            this.format = format;
+            this.bits = bits;
+            this.numberOfBits = numberOfBits;
+            this.hash = 31 * (31 * format + numberOfBits) + Arrays.hashCode(bits);
+        }
+
+        /**
+         * Copy the bits between start and end, the reader is left at end
+         */
+        static HeaderKey read(int format, BitReader reader, int start, int end) {
+            int numberOfBits = end - start;
+            byte[] bits = new byte[(numberOfBits + 7) / 8];
+            reader.seek(start);
+            for (int i = 0; i < numberOfBits / 8; i++)
+                bits[i] = (byte) reader.readBits(8);
+            int rest = numberOfBits % 8;
+            if (rest != 0)
+                bits[bits.length - 1] = (byte) (reader.readBits(rest) << (8 - rest));
+            return new HeaderKey(format, bits, numberOfBits);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof HeaderKey)) return false;
+            HeaderKey other = (HeaderKey) o;
+            return this.hash == other.hash && this.format == other.format
+                    && this.numberOfBits == other.numberOfBits && Arrays.equals(this.bits, other.bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.simopr.smscompress.algorithms;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Write a stream (a compressed message) directly in the user data of an SMS
+ * PDU, with the GSM 7 bits default alphabet (3GPP TS 23.038), and read it back.
+ *
+ * The stream is first cut in 7 bits codes like Ascii7bits.encode(), then each
+ * character of Ascii7bits is sent with its real GSM code: Ascii7bits orders the
+ * characters differently, and replaces CR with '{' and ESC with '€', both sent
+ * as extension characters (ESC + 0x28, ESC + 0x65), so they count for 2 septets.
+ *
+ * The septets are packed 8 in 7 octets, the first septet in the low bits of the
+ * first octet. When a user data header is sent before, fillBits zeros come
+ * first so that the first septet starts on a septet boundary.
+ */
+public class GsmPdu {
+
+    // escape to the extension table
+    private static final int ESC = 0x1B;
+
+    // extension codes of '{' and '€'
+    private static final int EXTENSION_BRACE = 0x28;
+    private static final int EXTENSION_EURO = 0x65;
+
+    // characters of the GSM default alphabet, CR (0x0D) and ESC (0x1B) are not used
+    private static final String ALPHABET = "@£$¥èéùìòÇ\nØø\rÅå"
+            + "Δ_ΦΓΛΩΠΨΣΘΞ\u001BÆæßÉ"
+            + " !\"#¤%&'()*+,-./"
+            + "0123456789:;<=>?"
+            + "¡ABCDEFGHIJKLMNO"
+            + "PQRSTUVWXYZÄÖÑÜ§"
+            + "¿abcdefghijklmno"
+            + "pqrstuvwxyzäöñüà";
+
+    // GSM code of each Ascii7bits code, ESC << 8 | extension for the extension characters
+    private static final int[] TO_GSM = new int[128];
+
+    // Ascii7bits code of each GSM code, -1 for CR and ESC
+    private static final int[] FROM_GSM = new int[128];
+
+    static {
+        Arrays.fill(FROM_GSM, -1);
+        for (int gsm = 0; gsm < 128; gsm++) {
+            int code = Ascii7bits.getCode(ALPHABET.charAt(gsm));
+            if (code < 0) continue;
+            TO_GSM[code] = gsm;
+            FROM_GSM[gsm] = code;
+        }
+        TO_GSM[Ascii7bits.getCode('{')] = ESC << 8 | EXTENSION_BRACE;
+        TO_GSM[Ascii7bits.getCode('€')] = ESC << 8 | EXTENSION_EURO;
+    }
+
+    /**
+     * number of septets needed to send the stream
+     *
+     * @param stream the stream to send
+     * @return number of septets of the user data (without header)
+     */
+    public static int septets(Stream stream) {
+        BitReader reader = codes(stream);
+        int septets = 0;
+        while (reader.remaining() > 0)
+            septets += width(nextCode(reader));
+        return septets;
+    }
+
+    /**
+     * Pack the stream in a new array of octets, without user data header
+     *
+     * @param stream the stream to send
+     * @return the octets of the user data
+     */
+    public static byte[] encode(Stream stream) {
+        byte[] userData = new byte[(GsmPdu.septets(stream) * 7 + 7) / 8];
+        GsmPdu.encode(stream, ByteBuffer.wrap(userData), 0);
+        return userData;
+    }
+
+    /**
+     * Pack the stream at the position of the buffer, the position is moved
+     * after the last octet written.
+     *
+     * @param stream the stream to send
+     * @param out where the octets are written
+     * @param fillBits number of zeros before the first septet (0 to 6)
+     * @return number of septets written (without the fill bits)
+     */
+    public static int encode(Stream stream, ByteBuffer out, int fillBits) {
+        return GsmPdu.pack(codes(stream), Integer.MAX_VALUE, out, fillBits);
+    }
+
+    /**
+     * Pack the next codes of the reader at the position of the buffer, as
+     * long as they fit in maxSeptets septets (an extension character is never
+     * cut from its escape).
+     *
+     * @param reader the codes of the stream (see codes())
+     * @param maxSeptets number of septets available
+     * @param out where the octets are written
+     * @param fillBits number of zeros before the first septet (0 to 6)
+     * @return number of septets written (without the fill bits)
+     */
+    static int pack(BitReader reader, int maxSeptets, ByteBuffer out, int fillBits) {
+        if (fillBits < 0 || fillBits > 6) throw new IllegalArgumentException();
+
+        long accumulator = 0;
+        int bits = fillBits;
+        int septets = 0;
+        while (reader.remaining() > 0) {
+            int code = reader.peekBits(7);
+            if (septets + width(code) > maxSeptets) break;
+            reader.skip(Math.min(7, reader.remaining()));
+
+            int gsm = TO_GSM[code];
+            if (gsm > 0xFF) {
+                accumulator |= (long) ESC << bits;
+                bits += 7;
+                septets++;
+                gsm &= 0x7F;
+            }
+            accumulator |= (long) gsm << bits;
+            bits += 7;
+            septets++;
+
+            // the octets are complete from the low bits
+            while (bits >= 8) {
+                out.put((byte) accumulator);
+                accumulator >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0)
+            out.put((byte) accumulator);
+        return septets;
+    }
+
+    /**
+     * Unpack a user data without header
+     *
+     * @param userData the octets of the user data
+     * @param septets number of septets (user data length)
+     * @return the stream given to encode()
+     */
+    public static Stream decode(byte[] userData, int septets) {
+        return GsmPdu.decode(ByteBuffer.wrap(userData), septets, 0);
+    }
+
+    /**
+     * Unpack septets from the position of the buffer, the position is moved
+     * after the last octet read.
+     *
+     * @param in the octets of the user data (after the user data header)
+     * @param septets number of septets to read (without the fill bits)
+     * @param fillBits number of zeros before the first septet (0 to 6)
+     * @return the stream given to encode()
+     */
+    public static Stream decode(ByteBuffer in, int septets, int fillBits) {
+        if (septets <= 0) throw new NullPointerException();
+
+        Stream codes = new Stream(septets + 1);
+        GsmPdu.unpack(in, septets, fillBits, codes);
+        return GsmPdu.fromCodes(codes);
+    }
+
+    /**
+     * Unpack septets from the position of the buffer and add their Ascii7bits
+     * codes (7 bits each) to a stream. The septets must not end with an escape.
+     *
+     * @param in the octets of the user data (after the user data header)
+     * @param septets number of septets to read (without the fill bits)
+     * @param fillBits number of zeros before the first septet (0 to 6)
+     * @param codes where the codes are added
+     */
+    static void unpack(ByteBuffer in, int septets, int fillBits, Stream codes) {
+        if (fillBits < 0 || fillBits > 6) throw new IllegalArgumentException();
+
+        // septets read from the low bits, the fill bits are dropped
+        long accumulator = 0;
+        int bits = 0;
+        if (fillBits > 0) {
+            if (!in.hasRemaining()) throw new NullPointerException();
+            accumulator = (in.get() & 0xFF) >>> fillBits;
+            bits = 8 - fillBits;
+        }
+
+        boolean escape = false;
+        for (int i = 0; i < septets; i++) {
+            // at least 7 bits in the accumulator
+            if (bits < 7) {
+                if (!in.hasRemaining()) throw new NullPointerException();
+                accumulator |= (long) (in.get() & 0xFF) << bits;
+                bits += 8;
+            }
+            int gsm = (int) (accumulator & 0x7F);
+            accumulator >>>= 7;
+            bits -= 7;
+
+            int code;
+            if (escape) {
+                if (gsm == EXTENSION_BRACE) code = Ascii7bits.getCode('{');
+                else if (gsm == EXTENSION_EURO) code = Ascii7bits.getCode('€');
+                else throw new NullPointerException();
+                escape = false;
+            } else if (gsm == ESC) {
+                escape = true;
+                continue;
+            } else {
+                code = FROM_GSM[gsm];
+                if (code < 0) throw new NullPointerException();
+            }
+
+            codes.addBits(code, 7);
+        }
+        // an escape must be followed by its extension
+        if (escape) throw new NullPointerException();
+    }
+
+    /**
+     * Rebuild the stream given to encode() from all its codes: the zeros
+     * at the end and the last '1' (padding limit) are removed
+     *
+     * @param codes the Ascii7bits codes of the stream
+     * @return the stream
+     */
+    static Stream fromCodes(Stream codes) {
+        // the bits of the codes without the padding limit of the stream of codes
+        int numberOfBits = codes.numberOfBits();
+        int length = (numberOfBits + 7) / 8;
+        byte[] bytes = Arrays.copyOf(codes.buffer(), length);
+        if (numberOfBits % 8 != 0)
+            bytes[length - 1] &= (byte) (0xFF << (8 - numberOfBits % 8));
+
+        // the padding limit is in the last byte which is not zero
+        while (length > 0 && bytes[length - 1] == 0) length--;
+        if (length == 0) throw new NullPointerException();
+        return Stream.reconstructStream(bytes, length);
+    }
+
+    /**
+     * number of septets of the GSM code of an Ascii7bits code
+     *
+     * @param code 0 to 127
+     * @return 2 for the extension characters, 1 otherwise
+     */
+    static int width(int code) {
+        return TO_GSM[code] > 0xFF ? 2 : 1;
+    }
+
+    /**
+     * reader of the bits of the stream and of its padding limit,
+     * the bits after the limit are zeros
+     */
+    static BitReader codes(Stream stream) {
+        if (stream == null) throw new NullPointerException();
+        return new BitReader(stream.buffer(), 0, stream.numberOfBits() + 1);
+    }
+
+    private static int nextCode(BitReader reader) {
+        int code = reader.peekBits(7);
+        reader.skip(Math.min(7, reader.remaining()));
+        return code;
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     */
+    public static void main(String[] args) {
+
+        // the usual example of the GSM packing
+        byte[] hello = GsmPdu.encode(Ascii7bits.decode("hellohello"));
+        assert(Arrays.equals(hello, new byte[]{(byte) 0xE8, 0x32, (byte) 0x9B, (byte) 0xFD, 0x46,
+                (byte) 0x97, (byte) 0xD9, (byte) 0xEC, 0x37}));
+        assert(Ascii7bits.encode(GsmPdu.decode(hello, 10)).equals("hellohello"));
+
+        // the extension characters take 2 septets
+        assert(GsmPdu.septets(Ascii7bits.decode("{a€a")) == 6);
+
+        String wholeMessage = "Bonjour, votre rendez-vous est confirmé pour demain à 10h30. مرحبا بكم {€}";
+        for (int i = 1; i <= wholeMessage.length(); i++) {
+            Stream compressed = Compression.compress(new Stream(wholeMessage.substring(0, i)));
+            int septets = GsmPdu.septets(compressed);
+
+            for (int fillBits = 0; fillBits <= 6; fillBits++) {
+                // a user data header of 6 octets then the fill bits
+                ByteBuffer pdu = ByteBuffer.allocate(6 + (fillBits + septets * 7 + 7) / 8);
+                pdu.put(new byte[]{5, 0, 3, 42, 2, 1});
+                assert(GsmPdu.encode(compressed, pdu, fillBits) == septets);
+                assert(!pdu.hasRemaining());
+
+                pdu.position(6);
+                Stream received = GsmPdu.decode(pdu, septets, fillBits);
+                assert(received.equals(compressed));
+                assert(Arrays.equals(Compression.decompress(received).getBytesWithoutLastPaddingByte(),
+                        new Stream(wholeMessage.substring(0, i)).getBytesWithoutLastPaddingByte()));
+            }
+        }
+    }
+}
@@ -0,0 +1,1017 @@
+package com.simopr.smscompress.algorithms;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compress and decompress messages between ByteBuffers without allocating
+ * (see Compression.compress(ByteBuffer, ByteBuffer)).
+ *
+ * Compression.compress(Stream) builds a Btree of Nodes, the tables of the
+ * encoder, a copy of the message and a Stream for each message. The codec
+ * does the same work in arrays kept from one message to the next: the trie
+ * is merged in arrays the same way Btree does (same tie-breaking), so the
+ * bytes written are exactly Stream.getBytes() of the compressed message,
+ * and the codes are written straight into the destination buffer.
+ *
+ * The decoder rebuilds the trie (or the canonical codes) in arrays too,
+ * with one lookup table for the short codes and a walk of the trie for the
+ * longer ones.
+ *
+ * FORMAT_ADAPTIVE messages are coded with the adaptive tree of the codec
+ * (see AdaptiveHuffman), reset for each message.
+ *
+ * A codec is not thread safe: use one per thread. The buffers can be heap
+ * or direct buffers.
+ */
+public class HuffmanCodec {
+
+    // returned when the destination buffer is too small
+    public static final int OVERFLOW = -1;
+
+    // returned when the source is not a compressed message
+    public static final int CORRUPTED = -2;
+
+    // number of bits looked up at once by the decoder
+    private static final int TABLE_BITS = 10;
+
+    // nodes of a trie of 256 characters
+    private static final int MAX_NODES = 2 * 256 - 1;
+
+    // frequency of each byte of the message
+    private final int[] histogram = new int[256];
+
+    // characters sorted by weight then by value (see Btree)
+    private final long[] keys = new long[256];
+
+    // the trie: weight, children (-1 if none), character (-1 for the internal nodes)
+    private final int[] weight = new int[MAX_NODES];
+    private final int[] left = new int[MAX_NODES];
+    private final int[] right = new int[MAX_NODES];
+    private final int[] symbol = new int[MAX_NODES];
+    private final int[] depth = new int[MAX_NODES];
+    private final long[] path = new long[MAX_NODES];
+
+    // queue of the merged nodes (see Btree.merge)
+    private final int[] next = new int[256];
+
+    // nodes still to write or to read in preorder
+    private final int[] stack = new int[MAX_NODES + 1];
+
+    // code and code length of each character
+    private final long[] codes = new long[256];
+    private final int[] lengths = new int[256];
+    private final int[] lengthCount = new int[CanonicalCode.MAX_LENGTH + 1];
+    private final long[] nextCode = new long[CanonicalCode.MAX_LENGTH + 1];
+
+    // lookup table of the decoder (see HuffmanDecoder for the entries)
+    private final int[] table = new int[1 << TABLE_BITS];
+    private int tableBits;
+
+    // number of nodes of the trie read by the decoder
+    private int nodes;
+
+    // codebook of the trie and the table, -1 when they are not a codebook
+    private int tableCodebook = -1;
+
+    // the tree of FORMAT_ADAPTIVE, rebuilt while coding each message
+    private final AdaptiveHuffman adaptive = new AdaptiveHuffman();
+
+    // bits waiting to be written as a whole byte
+    private long accumulator;
+    private int pending;
+
+    // the message being decoded: buffer, index of its first byte, number of bytes
+    private ByteBuffer input;
+    private int base;
+    private int bytes;
+    // next bit to read and number of bits of the message
+    private int position;
+    private int end;
+
+    // size of the header of the last compressed message
+    private int headerBits;
+
+    // room for the largest header (trie of 256 characters) in a Stream
+    private static final int HEADER_BYTES = (8 + 10 * 256) / 8 + 1;
+
+    // copy of the input Stream, views of the arrays of the output Streams
+    private ByteBuffer source = ByteBuffer.allocate(256);
+    private ByteBuffer compressTarget;
+    private ByteBuffer decompressTarget;
+
+    /**
+     * Compress the remaining bytes of src into dst, the bytes written are
+     * Stream.getBytes() of Compression.compress(message, format).
+     * On success the positions of both buffers are moved after the bytes read
+     * and written, otherwise nothing is moved.
+     *
+     * @param src the message (at least one byte)
+     * @param dst where to write the compressed message
+     * @param format FORMAT_TRIE, FORMAT_CANONICAL, FORMAT_STATIC or FORMAT_ADAPTIVE
+     * @return number of bits of the compressed message (without the padding
+     * bits), or OVERFLOW if dst has less than bits / 8 + 1 bytes remaining
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst, int format) {
+        if (src == null || dst == null || !src.hasRemaining()) throw new NullPointerException();
+        if (format == Compression.FORMAT_ADAPTIVE) return this.compressAdaptive(src, dst);
+
+        int from = src.position();
+        int to = src.limit();
+        Arrays.fill(this.histogram, 0);
+        for (int i = from; i < to; i++)
+            this.histogram[src.get(i) & 0xFF]++;
+
+        int n = 0;
+        for (int c = 0; c < 256; c++)
+            if (this.histogram[c] != 0) n++;
+
+        // the static codes are written from the tables of the codebook
+        int[] lengths = this.lengths;
+        long[] codes = this.codes;
+        Arrays.fill(this.lengths, 0);
+        int root = -1;
+        StaticCodebook codebook = null;
+        if (format == Compression.FORMAT_TRIE) {
+            root = this.buildTree(n);
+            this.headerBits = 8 + 10 * n - 1;
+        } else if (format == Compression.FORMAT_CANONICAL) {
+            root = this.buildTree(n);
+            int longest = 0;
+            for (int length : this.lengths)
+                longest = Math.max(longest, length);
+            // rare skewed messages: the limited lengths are computed by LengthLimitedCode
+            if (longest > Compression.MAX_CODE_LENGTH)
+                System.arraycopy(LengthLimitedCode.getCodeLengths(this.histogram, Compression.MAX_CODE_LENGTH),
+                        0, this.lengths, 0, 256);
+            this.canonicalCodes();
+            this.headerBits = Compression.FORMAT_PREFIX_BITS + this.canonicalHeaderBits(n);
+        } else if (format == Compression.FORMAT_STATIC) {
+            codebook = StaticCodebook.best(this.histogram);
+            lengths = codebook.getLengths();
+            codes = codebook.getCodes();
+            this.headerBits = Compression.FORMAT_PREFIX_BITS + StaticCodebook.ID_BITS;
+        } else {
+            throw new IllegalArgumentException();
+        }
+
+        long bits = this.headerBits + LengthLimitedCode.cost(this.histogram, lengths);
+        if (bits >= Integer.MAX_VALUE || dst.remaining() < bits / 8 + 1) return OVERFLOW;
+
+        this.accumulator = 0;
+        this.pending = 0;
+        if (format == Compression.FORMAT_TRIE) {
+            this.write(dst, n & 0xFF, 8);
+            this.writeTrie(dst, root);
+        } else {
+            this.write(dst, Compression.FORMAT_ESCAPE, Compression.FORMAT_ESCAPE_BITS);
+            this.write(dst, format, Compression.FORMAT_BITS);
+            if (codebook != null) this.write(dst, codebook.getId(), StaticCodebook.ID_BITS);
+            else this.writeCanonicalHeader(dst, n);
+        }
+
+        for (int i = from; i < to; i++) {
+            int c = src.get(i) & 0xFF;
+            this.write(dst, codes[c], lengths[c]);
+        }
+
+        // the padding limit, then zeros up to the end of the byte
+        this.write(dst, 1, 1);
+        if (this.pending > 0) this.write(dst, 0, 8 - this.pending);
+
+        src.position(to);
+        return (int) bits;
+    }
+
+    /**
+     * Decompress the remaining bytes of src (Stream.getBytes() of a compressed
+     * message) into dst. On success the positions of both buffers are moved
+     * after the bytes read and written, otherwise nothing is moved.
+     *
+     * @param src the compressed message
+     * @param dst where to write the message
+     * @return number of bytes of the message, OVERFLOW if dst is too small,
+     * CORRUPTED if src is not a compressed message
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) {
+        if (src == null || dst == null) throw new NullPointerException();
+        int start = dst.position();
+        if (!src.hasRemaining()) return CORRUPTED;
+
+        this.input = src;
+        this.base = src.position();
+        this.bytes = src.remaining();
+        try {
+            // the padding limit is the last 1 of the last byte
+            byte last = src.get(this.base + this.bytes - 1);
+            if (last == 0) return CORRUPTED;
+            this.position = 0;
+            this.end = (this.bytes - 1) * 8 + Stream.getPaddingPosition(last);
+
+            int format = this.readFormat();
+            if (format == Compression.FORMAT_ADAPTIVE) {
+                // no header, the tree is rebuilt while decoding
+                this.adaptive.reset();
+            } else if (format == Compression.FORMAT_TRIE) {
+                this.fillTable(this.readTrie());
+            } else if (format == Compression.FORMAT_CANONICAL) {
+                this.readCanonicalHeader();
+                this.fillTable(this.canonicalTree());
+            } else {
+                // the table of the last codebook is kept until another trie is built
+                int id = this.readBits(StaticCodebook.ID_BITS);
+                StaticCodebook codebook = StaticCodebook.get(id);
+                if (this.tableCodebook != id) {
+                    System.arraycopy(codebook.getLengths(), 0, this.lengths, 0, 256);
+                    this.fillTable(this.canonicalTree());
+                    this.tableCodebook = id;
+                }
+            }
+
+            // empty message content is an error
+            if (this.position == this.end) return CORRUPTED;
+            while (this.position < this.end) {
+                int c = format == Compression.FORMAT_ADAPTIVE ? this.decodeAdaptive() : this.decodeSymbol();
+                if (!dst.hasRemaining()) {
+                    dst.position(start);
+                    return OVERFLOW;
+                }
+                dst.put((byte) c);
+            }
+            src.position(this.base + this.bytes);
+            return dst.position() - start;
+
+        } catch (RuntimeException e) {
+            dst.position(start);
+            return CORRUPTED;
+        } finally {
+            this.input = null;
+        }
+    }
+
+    /**
+     * Compress a message into a Stream, reusing the buffer of the Stream:
+     * once the buffers are large enough nothing is allocated.
+     * compressed is the same as Compression.compress(message, format).
+     *
+     * @param message the message (whole bytes, at least one)
+     * @param compressed cleared then filled with the compressed message
+     * @param format FORMAT_TRIE, FORMAT_CANONICAL, FORMAT_STATIC or FORMAT_ADAPTIVE
+     * @return number of bits of the compressed message
+     */
+    public int compress(Stream message, Stream compressed, int format) {
+        if (message == null || compressed == null || message.getBitPosition() != 0 || message.getBytePosition() == 0)
+            throw new NullPointerException();
+        if (message == compressed) throw new IllegalArgumentException();
+
+        compressed.clear();
+        compressed.ensureCapacity(message.getBytePosition() + HEADER_BYTES);
+        while (true) {
+            ByteBuffer src = this.source(message.buffer(), message.getBytePosition());
+            ByteBuffer dst = this.compressTarget = target(this.compressTarget, compressed.buffer(), compressed.buffer().length);
+            int bits = this.compress(src, dst, format);
+            if (bits != OVERFLOW) {
+                compressed.setNumberOfBits(bits);
+                return bits;
+            }
+            compressed.ensureCapacity(2 * compressed.buffer().length);
+        }
+    }
+
+    /**
+     * Decompress a Stream into a Stream, reusing the buffer of the message:
+     * once the buffers are large enough nothing is allocated.
+     *
+     * @param compressed the compressed message
+     * @param message cleared then filled with the message (left empty if
+     * compressed is not a compressed message)
+     * @return number of bytes of the message, or CORRUPTED
+     */
+    public int decompress(Stream compressed, Stream message) {
+        if (compressed == null || message == null) throw new NullPointerException();
+        if (message == compressed) throw new IllegalArgumentException();
+
+        message.clear();
+        message.ensureCapacity(2 * compressed.size());
+        while (true) {
+            ByteBuffer src = this.source(compressed.buffer(), compressed.size());
+            // one byte is left for the padding limit
+            ByteBuffer dst = this.decompressTarget = target(this.decompressTarget, message.buffer(), message.buffer().length - 1);
+            int bytes = this.decompress(src, dst);
+            if (bytes >= 0) {
+                message.buffer()[bytes] = (byte) 0b10000000;
+                message.setNumberOfBits(8 * bytes);
+                return bytes;
+            }
+
+            // the bytes written before the failure must be zeros again
+            Arrays.fill(message.buffer(), (byte) 0);
+            message.clear();
+            if (bytes == CORRUPTED) return CORRUPTED;
+            message.ensureCapacity(2 * message.buffer().length);
+        }
+    }
+
+    /**
+     * The first length bytes of an array copied in the source buffer (the
+     * arrays of the messages change at each call, the copy does not allocate)
+     */
+    private ByteBuffer source(byte[] array, int length) {
+        if (this.source.capacity() < length)
+            this.source = ByteBuffer.allocate(Math.max(length, 2 * this.source.capacity()));
+        this.source.clear();
+        this.source.put(array, 0, length).flip();
+        return this.source;
+    }
+
+    /**
+     * A buffer on the first limit bytes of an array, the previous one is
+     * kept while the array is the same (the output Stream is reused)
+     */
+    private static ByteBuffer target(ByteBuffer previous, byte[] array, int limit) {
+        ByteBuffer target = previous != null && previous.array() == array ? previous : ByteBuffer.wrap(array);
+        target.limit(limit).position(0);
+        return target;
+    }
+
+    /**
+     * number of bits of the header of the last message compressed
+     *
+     * @return bits before the codes of the characters
+     */
+    int headerBits() {
+        return this.headerBits;
+    }
+
+    /**
+     * the adaptive tree of the codec, used by Compression and MessageValidator
+     * for FORMAT_ADAPTIVE messages read from a BitReader
+     *
+     * @return the tree, owned by the holder of the codec
+     */
+    AdaptiveHuffman getAdaptive() {
+        return this.adaptive;
+    }
+
+    /**
+     * Compress with FORMAT_ADAPTIVE: the size is known only once the codes
+     * are written, so dst is filled until it is full, then its position is
+     * put back on OVERFLOW
+     */
+    private int compressAdaptive(ByteBuffer src, ByteBuffer dst) {
+        int from = src.position();
+        int to = src.limit();
+        int start = dst.position();
+        this.headerBits = Compression.FORMAT_PREFIX_BITS;
+        long bits = this.headerBits;
+        try {
+            this.accumulator = 0;
+            this.pending = 0;
+            this.write(dst, Compression.FORMAT_ESCAPE, Compression.FORMAT_ESCAPE_BITS);
+            this.write(dst, Compression.FORMAT_ADAPTIVE, Compression.FORMAT_BITS);
+
+            this.adaptive.reset();
+            for (int i = from; i < to; i++) {
+                int c = src.get(i) & 0xFF;
+                boolean isNew = this.adaptive.isNew(c);
+                this.write(dst, this.adaptive.code(c), this.adaptive.codeLength());
+                bits += this.adaptive.codeLength();
+                if (isNew) {
+                    this.write(dst, c, 8);
+                    bits += 8;
+                }
+                this.adaptive.update(c);
+            }
+
+            // the padding limit, then zeros up to the end of the byte
+            this.write(dst, 1, 1);
+            if (this.pending > 0) this.write(dst, 0, 8 - this.pending);
+        } catch (BufferOverflowException e) {
+            dst.position(start);
+            return OVERFLOW;
+        }
+        if (bits >= Integer.MAX_VALUE) {
+            dst.position(start);
+            return OVERFLOW;
+        }
+
+        src.position(to);
+        return (int) bits;
+    }
+
+    /**
+     * Decode the next FORMAT_ADAPTIVE character, walking the adaptive tree
+     * bit by bit, and update the tree
+     *
+     * @return the character
+     */
+    private int decodeAdaptive() {
+        int node = AdaptiveHuffman.ROOT;
+        while (!this.adaptive.isLeaf(node))
+            node = this.adaptive.child(node, this.readBits(1));
+
+        int c = this.adaptive.symbol(node);
+        if (c < 0) {
+            c = this.readBits(8);
+            // the encoder never sends again a character already in the tree
+            if (!this.adaptive.isNew(c)) throw new NullPointerException();
+        }
+        this.adaptive.update(c);
+        return c;
+    }
+
+    /**
+     * Merge the characters of the histogram into a trie, the same way as
+     * Btree, and set the code and the code length of each character
+     *
+     * @param n number of characters in the histogram
+     * @return the root of the trie
+     */
+    private int buildTree(int n) {
+        this.tableCodebook = -1;
+        int k = 0;
+        for (int c = 0; c < 256; c++)
+            if (this.histogram[c] != 0)
+                this.keys[k++] = ((long) this.histogram[c] << 8) | (c ^ 0x80);
+        Arrays.sort(this.keys, 0, n);
+
+        for (int i = 0; i < n; i++) {
+            this.weight[i] = (int) (this.keys[i] >>> 8);
+            this.symbol[i] = (int) (this.keys[i] & 0xFF) ^ 0x80;
+            this.left[i] = -1;
+            this.right[i] = -1;
+        }
+
+        // the merged node count is the node n + count (see Btree.merge)
+        int head = -1;
+        int tail = -1;
+        int runHead = -1;
+        int beforeRun = -1;
+        int leaf = 0;
+        for (int count = 0; count < n - 1; count++) {
+            int node = n + count;
+            for (int side = 0; side < 2; side++) {
+                int smallest;
+                if (head < 0 || (leaf < n && this.weight[leaf] < this.weight[n + head])) {
+                    smallest = leaf++;
+                } else {
+                    smallest = n + head;
+                    if (beforeRun == head) beforeRun = -1;
+                    if (runHead == head) runHead = this.next[head];
+                    head = this.next[head];
+                    if (head < 0) tail = -1;
+                }
+                if (side == 0) this.left[node] = smallest;
+                else this.right[node] = smallest;
+            }
+            this.weight[node] = this.weight[this.left[node]] + this.weight[this.right[node]];
+            this.symbol[node] = -1;
+            this.next[count] = -1;
+
+            if (head < 0) {
+                head = tail = runHead = count;
+                beforeRun = -1;
+            } else if (this.weight[n + tail] == this.weight[node]) {
+                this.next[count] = runHead;
+                if (beforeRun < 0) head = count;
+                else this.next[beforeRun] = count;
+                runHead = count;
+            } else {
+                this.next[tail] = count;
+                beforeRun = tail;
+                tail = runHead = count;
+            }
+        }
+
+        // one character: the leaf is the root, its code is "0"
+        if (n == 1) {
+            this.lengths[this.symbol[0]] = 1;
+            this.codes[this.symbol[0]] = 0;
+            return 0;
+        }
+
+        // the children of a merged node are older nodes: paths from the root down
+        int root = 2 * n - 2;
+        this.depth[root] = 0;
+        this.path[root] = 0;
+        for (int node = root; node >= n; node--) {
+            for (int side = 0; side < 2; side++) {
+                int child = side == 0 ? this.left[node] : this.right[node];
+                this.depth[child] = this.depth[node] + 1;
+                this.path[child] = (this.path[node] << 1) | side;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (this.depth[i] > CanonicalCode.MAX_LENGTH) throw new NullPointerException();
+            this.lengths[this.symbol[i]] = this.depth[i];
+            this.codes[this.symbol[i]] = this.path[i];
+        }
+        return root;
+    }
+
+    /**
+     * Write the trie in preorder like Btree.writeTrie(): 0 for an internal
+     * node, 1 and the character for a leaf
+     */
+    private void writeTrie(ByteBuffer dst, int root) {
+        int size = 0;
+        this.stack[size++] = root;
+        while (size > 0) {
+            int node = this.stack[--size];
+            if (this.symbol[node] >= 0) {
+                this.write(dst, 0x100 | this.symbol[node], 9);
+            } else {
+                this.write(dst, 0, 1);
+                this.stack[size++] = this.right[node];
+                this.stack[size++] = this.left[node];
+            }
+        }
+    }
+
+    /**
+     * Set the codes of the lengths: consecutive codes for the characters
+     * sorted by length then by value (see CanonicalCode)
+     */
+    private void canonicalCodes() {
+        Arrays.fill(this.lengthCount, 0);
+        for (int c = 0; c < 256; c++)
+            this.lengthCount[this.lengths[c]]++;
+
+        // first code of each length: after the codes of the shorter lengths, shifted
+        long code = 0;
+        this.lengthCount[0] = 0;
+        for (int length = 1; length <= CanonicalCode.MAX_LENGTH; length++) {
+            code = (code + this.lengthCount[length - 1]) << 1;
+            this.nextCode[length] = code;
+        }
+        for (int c = 0; c < 256; c++)
+            if (this.lengths[c] != 0)
+                this.codes[c] = this.nextCode[this.lengths[c]]++;
+    }
+
+    /**
+     * Same as CanonicalCode.headerBits()
+     */
+    private int canonicalHeaderBits(int n) {
+        int width = bitsFor(this.maxLength() - this.minLength());
+        return 8 + 1 + Math.min(this.listBits(), 256) + 3 + 3 + width * n;
+    }
+
+    /**
+     * Same as CanonicalCode.writeHeader()
+     */
+    private void writeCanonicalHeader(ByteBuffer dst, int n) {
+        this.write(dst, n - 1, 8);
+        if (this.listBits() < 256) {
+            this.write(dst, 0, 1);
+            int previous = -1;
+            for (int c = 0; c < 256; c++) {
+                if (this.lengths[c] == 0) continue;
+                if (previous < 0) {
+                    this.write(dst, c, 8);
+                } else {
+                    int bits = bitsFor(c - previous);
+                    this.write(dst, c - previous, 2 * bits - 1);
+                }
+                previous = c;
+            }
+        } else {
+            this.write(dst, 1, 1);
+            for (int c = 0; c < 256; c++)
+                this.write(dst, this.lengths[c] != 0 ? 1 : 0, 1);
+        }
+
+        int min = this.minLength();
+        int width = bitsFor(this.maxLength() - min);
+        this.write(dst, min - 1, 3);
+        this.write(dst, width, 3);
+        for (int c = 0; c < 256; c++)
+            if (this.lengths[c] != 0)
+                this.write(dst, this.lengths[c] - min, width);
+    }
+
+    private int listBits() {
+        int bits = 0;
+        int previous = -1;
+        for (int c = 0; c < 256; c++) {
+            if (this.lengths[c] == 0) continue;
+            bits += previous < 0 ? 8 : 2 * bitsFor(c - previous) - 1;
+            previous = c;
+        }
+        return bits;
+    }
+
+    private int minLength() {
+        int min = Integer.MAX_VALUE;
+        for (int length : this.lengths)
+            if (length != 0 && length < min) min = length;
+        return min;
+    }
+
+    private int maxLength() {
+        int max = 0;
+        for (int length : this.lengths)
+            max = Math.max(max, length);
+        return max;
+    }
+
+    private static int bitsFor(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Write the count lowest bits of bits (count up to 57), the most
+     * significant one first, the whole bytes go to dst
+     */
+    private void write(ByteBuffer dst, long bits, int count) {
+        this.accumulator = (this.accumulator << count) | (bits & ((1L << count) - 1));
+        this.pending += count;
+        while (this.pending >= 8) {
+            this.pending -= 8;
+            dst.put((byte) (this.accumulator >>> this.pending));
+        }
+    }
+
+    /**
+     * The next n bits of the message (n up to 24) without moving, the bits
+     * after the end of the message are zeros
+     */
+    private int peekBits(int n) {
+        if (n == 0) return 0;
+        int index = this.position >>> 3;
+        int bits;
+        if (index + 8 <= this.bytes) {
+            // 8 bytes at once, the most significant first whatever the order of the buffer
+            long word = this.input.getLong(this.base + index);
+            if (this.input.order() != ByteOrder.BIG_ENDIAN) word = Long.reverseBytes(word);
+            bits = (int) ((word << (this.position & 7)) >>> (64 - n));
+        } else {
+            int window = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = index + i < this.bytes ? this.input.get(this.base + index + i) & 0xFF : 0;
+                window = (window << 8) | b;
+            }
+            bits = (window >>> (32 - (this.position & 7) - n)) & ((1 << n) - 1);
+        }
+
+        int available = this.end - this.position;
+        if (available < n)
+            bits &= available <= 0 ? 0 : ((1 << available) - 1) << (n - available);
+        return bits;
+    }
+
+    private int readBits(int n) {
+        if (n > this.end - this.position) throw new NullPointerException();
+        int bits = this.peekBits(n);
+        this.position += n;
+        return bits;
+    }
+
+    /**
+     * Same as Compression.readFormat()
+     */
+    private int readFormat() {
+        if (this.end - this.position < Compression.FORMAT_PREFIX_BITS
+                || this.peekBits(Compression.FORMAT_ESCAPE_BITS) != Compression.FORMAT_ESCAPE)
+            return Compression.FORMAT_TRIE;
+
+        this.position += Compression.FORMAT_ESCAPE_BITS;
+        int format = this.readBits(Compression.FORMAT_BITS);
+        if (format != Compression.FORMAT_CANONICAL && format != Compression.FORMAT_STATIC
+                && format != Compression.FORMAT_ADAPTIVE) throw new NullPointerException();
+        return format;
+    }
+
+    /**
+     * Read N and the trie like Btree(BitReader): the reading stops when the
+     * N characters are read, the children not read yet are missing
+     *
+     * @return the root of the trie
+     */
+    private int readTrie() {
+        this.tableCodebook = -1;
+        int n = this.readBits(8);
+        if (n == 0) n = 256;
+
+        // slots to fill: the node and the side (right = 1) of the parent, the root is -1
+        int nodes = 0;
+        int size = 0;
+        this.stack[size++] = -1;
+        while (size > 0) {
+            int slot = this.stack[--size];
+            int node = -1;
+            if (n > 0) {
+                if (nodes == MAX_NODES) throw new NullPointerException();
+                node = nodes++;
+                this.depth[node] = slot < 0 ? 0 : this.depth[slot >> 1] + 1;
+                this.left[node] = -1;
+                this.right[node] = -1;
+                if (this.readBits(1) == 1) {
+                    this.symbol[node] = this.readBits(8);
+                    n--;
+                } else {
+                    this.symbol[node] = -1;
+                    this.stack[size++] = (node << 1) | 1;
+                    this.stack[size++] = node << 1;
+                }
+            }
+            if (slot >= 0) {
+                if ((slot & 1) == 0) this.left[slot >> 1] = node;
+                else this.right[slot >> 1] = node;
+            }
+        }
+
+        // wrong trie
+        if (n != 0) throw new NullPointerException();
+        this.nodes = nodes;
+        return 0;
+    }
+
+    /**
+     * Same as CanonicalCode.readHeader(), the lengths are left in lengths
+     */
+    private void readCanonicalHeader() {
+        int n = this.readBits(8) + 1;
+        Arrays.fill(this.lengths, 0);
+
+        // the characters are marked with a length of 1 until the lengths are read
+        if (this.readBits(1) == 0) {
+            int c = this.readBits(8);
+            this.lengths[c] = 1;
+            for (int i = 1; i < n; i++) {
+                int zeros = 0;
+                while (this.readBits(1) == 0) {
+                    if (++zeros > 8) throw new NullPointerException();
+                }
+                c += (1 << zeros) | this.readBits(zeros);
+                if (c > 255) throw new NullPointerException();
+                this.lengths[c] = 1;
+            }
+        } else {
+            int count = 0;
+            for (int c = 0; c < 256; c++) {
+                if (this.readBits(1) == 1) {
+                    if (count == n) throw new NullPointerException();
+                    this.lengths[c] = 1;
+                    count++;
+                }
+            }
+            if (count != n) throw new NullPointerException();
+        }
+
+        int min = this.readBits(3) + 1;
+        int width = this.readBits(3);
+        for (int c = 0; c < 256; c++)
+            if (this.lengths[c] != 0)
+                this.lengths[c] = min + this.readBits(width);
+    }
+
+    /**
+     * Build the trie of the canonical codes of lengths, checking the lengths
+     * like CanonicalCode(int[])
+     *
+     * @return the root of the trie
+     */
+    private int canonicalTree() {
+        this.tableCodebook = -1;
+        int n = 0;
+        int longest = 0;
+        for (int c = 0; c < 256; c++) {
+            if (this.lengths[c] > CanonicalCode.MAX_LENGTH) throw new NullPointerException();
+            if (this.lengths[c] > 0) n++;
+            longest = Math.max(longest, this.lengths[c]);
+        }
+        if (n == 0) throw new NullPointerException();
+
+        if (n == 1) {
+            if (longest != 1) throw new NullPointerException();
+            for (int c = 0; c < 256; c++)
+                if (this.lengths[c] != 0) this.symbol[0] = c;
+            this.left[0] = -1;
+            this.right[0] = -1;
+            this.depth[0] = 0;
+            this.nodes = 1;
+            return 0;
+        }
+
+        // the codes must fill the whole tree (Kraft sum equal to 1)
+        long kraft = 0;
+        for (int c = 0; c < 256; c++)
+            if (this.lengths[c] != 0) kraft += 1L << (CanonicalCode.MAX_LENGTH - this.lengths[c]);
+        if (kraft != 1L << CanonicalCode.MAX_LENGTH) throw new NullPointerException();
+        this.canonicalCodes();
+
+        // insert the code of each character from the root
+        int nodes = 1;
+        this.left[0] = -1;
+        this.right[0] = -1;
+        this.symbol[0] = -1;
+        this.depth[0] = 0;
+        for (int c = 0; c < 256; c++) {
+            int length = this.lengths[c];
+            if (length == 0) continue;
+            int node = 0;
+            for (int i = length - 1; i >= 0; i--) {
+                boolean one = ((this.codes[c] >>> i) & 1) != 0;
+                int child = one ? this.right[node] : this.left[node];
+                if (child < 0) {
+                    child = nodes++;
+                    this.left[child] = -1;
+                    this.right[child] = -1;
+                    this.symbol[child] = -1;
+                    this.depth[child] = this.depth[node] + 1;
+                    if (one) this.right[node] = child;
+                    else this.left[node] = child;
+                }
+                node = child;
+            }
+            this.symbol[node] = c;
+        }
+        this.nodes = nodes;
+        return 0;
+    }
+
+    /**
+     * Fill the lookup table of the codes of the trie
+     */
+    private void fillTable(int root) {
+        if (this.symbol[root] >= 0) {
+            // one character: every code is "0", "1" is an error
+            this.tableBits = 1;
+            this.table[0] = (1 << 8) | this.symbol[root];
+            this.table[1] = 0;
+            return;
+        }
+        int height = 0;
+        for (int node = 0; node < this.nodes; node++)
+            height = Math.max(height, this.depth[node]);
+        this.tableBits = Math.min(TABLE_BITS, height);
+        Arrays.fill(this.table, 0, 1 << this.tableBits, 0);
+        this.fill(root, 0, 0);
+    }
+
+    /**
+     * Helper function for fillTable, same as HuffmanDecoder: the leaves
+     * above TABLE_BITS fill all the entries starting with their code, the
+     * nodes at TABLE_BITS are walked bit by bit
+     */
+    private void fill(int node, int depth, int prefix) {
+        if (node < 0) return;
+        if (this.symbol[node] >= 0) {
+            int first = prefix << (this.tableBits - depth);
+            Arrays.fill(this.table, first, first + (1 << (this.tableBits - depth)), (depth << 8) | this.symbol[node]);
+            return;
+        }
+        if (depth == this.tableBits) {
+            this.table[prefix] = 0x80000000 | node;
+            return;
+        }
+        this.fill(this.left[node], depth + 1, prefix << 1);
+        this.fill(this.right[node], depth + 1, (prefix << 1) | 1);
+    }
+
+    /**
+     * Read one code
+     *
+     * @return the character of the code
+     */
+    private int decodeSymbol() {
+        int entry = this.table[this.peekBits(this.tableBits)];
+        if (entry > 0) {
+            int length = entry >>> 8;
+            if (length > this.end - this.position) throw new NullPointerException();
+            this.position += length;
+            return entry & 0xFF;
+        }
+        if (entry == 0 || this.tableBits > this.end - this.position) throw new NullPointerException();
+
+        // a long code: walk the trie from the node reached by the table
+        this.position += this.tableBits;
+        int node = entry & 0x7FFFFFFF;
+        while (this.symbol[node] < 0) {
+            node = this.readBits(1) == 1 ? this.right[node] : this.left[node];
+            if (node < 0) throw new NullPointerException();
+        }
+        return this.symbol[node];
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     */
+    public static void main(String[] args) {
+
+        // the same bytes as compress(Stream), and back
+        Random random = new Random(17);
+        HuffmanCodec codec = new HuffmanCodec();
+        ByteBuffer heap = ByteBuffer.allocate(1 << 17);
+        ByteBuffer direct = ByteBuffer.allocateDirect(1 << 17);
+        ByteBuffer out = ByteBuffer.allocateDirect(1 << 17);
+        for (int testCases = 0; testCases < 20000; testCases++) {
+            int length = 1 + random.nextInt(testCases % 100 == 0 ? 60000 : 300);
+            int alphabet = 1 + random.nextInt(256);
+            byte[] message = new byte[length];
+            for (int i = 0; i < length; i++)
+                message[i] = (byte) (random.nextInt(alphabet) * random.nextInt(alphabet) / alphabet);
+            int format = random.nextInt(4);
+            Stream reference = Compression.compress(new Stream(message), format);
+
+            ByteBuffer compressed = testCases % 2 == 0 ? heap : direct;
+            compressed.clear();
+            ByteBuffer src = ByteBuffer.wrap(message);
+            int bits = codec.compress(src, compressed, format);
+            assert(bits == reference.numberOfBits());
+            assert(!src.hasRemaining());
+            compressed.flip();
+            byte[] written = new byte[compressed.remaining()];
+            compressed.get(compressed.position(), written);
+            assert(Arrays.equals(written, reference.getBytes()));
+            assert(codec.headerBits() == Compression.headerBits(reference));
+
+            out.clear();
+            assert(codec.decompress(compressed, out) == length);
+            assert(!compressed.hasRemaining());
+            out.flip();
+            byte[] decompressed = new byte[out.remaining()];
+            out.get(decompressed);
+            assert(Arrays.equals(decompressed, message));
+
+            // too small buffers: nothing moves
+            compressed.position(0);
+            ByteBuffer small = ByteBuffer.allocate(length - 1);
+            assert(codec.decompress(compressed, small) == OVERFLOW);
+            assert(compressed.position() == 0 && small.position() == 0);
+            src = ByteBuffer.wrap(message);
+            ByteBuffer tooSmall = ByteBuffer.allocate(written.length - 1);
+            assert(codec.compress(src, tooSmall, format) == OVERFLOW);
+            assert(src.position() == 0 && tooSmall.position() == 0);
+        }
+
+        // damaged messages: the same answer as decompress(Stream)
+        for (int testCases = 0; testCases < 20000; testCases++) {
+            byte[] bytes = new byte[1 + random.nextInt(40)];
+            random.nextBytes(bytes);
+            if (testCases % 2 == 0) {
+                byte[] message = new byte[1 + random.nextInt(100)];
+                for (int i = 0; i < message.length; i++)
+                    message[i] = (byte) ('a' + random.nextInt(10));
+                bytes = Compression.compress(new Stream(message), random.nextInt(4)).getBytes();
+                bytes[random.nextInt(bytes.length)] ^= (byte) (1 << random.nextInt(8));
+            }
+            Stream expected = bytes[bytes.length - 1] == 0 ? null : Compression.decompress(Stream.reconstructStream(bytes));
+            out.clear();
+            int result = codec.decompress(ByteBuffer.wrap(bytes), out);
+            if (expected == null) {
+                assert(result == CORRUPTED);
+            } else {
+                assert(result == expected.getBytePosition());
+                byte[] decompressed = new byte[result];
+                out.flip().get(decompressed);
+                assert(Arrays.equals(decompressed, expected.getBytesWithoutLastPaddingByte()));
+            }
+        }
+
+        // allocation and time against compress(Stream) on SMS
+        String[] sms = {
+                "Votre code est 482913",
+                "Bonjour, votre colis 7741 sera livre demain entre 9h et 12h. Merci",
+                "Rappel: votre facture de 42,90 EUR est disponible dans votre espace client. Pour toute question, repondez a ce message."
+        };
+        ByteBuffer[] messages = new ByteBuffer[sms.length];
+        for (int i = 0; i < sms.length; i++)
+            messages[i] = ByteBuffer.wrap(sms[i].getBytes());
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        int rounds = 100000;
+        for (int warmup = 0; warmup < 3; warmup++) {
+            for (int format = Compression.FORMAT_TRIE; format <= Compression.FORMAT_ADAPTIVE; format++) {
+                long allocated = threads.getThreadAllocatedBytes(id);
+                long begin = System.nanoTime();
+                for (int r = 0; r < rounds; r++) {
+                    for (ByteBuffer message : messages) {
+                        heap.clear();
+                        codec.compress(message.rewind(), heap, format);
+                        heap.flip();
+                        out.clear();
+                        codec.decompress(heap, out);
+                    }
+                }
+                long time = (System.nanoTime() - begin) / ((long) rounds * messages.length);
+                long bytes = (threads.getThreadAllocatedBytes(id) - allocated) / ((long) rounds * messages.length);
+
+                allocated = threads.getThreadAllocatedBytes(id);
+                begin = System.nanoTime();
+                for (int r = 0; r < rounds; r++)
+                    for (String message : sms)
+                        Compression.decompress(Compression.compress(new Stream(message), format));
+                long streamTime = (System.nanoTime() - begin) / ((long) rounds * messages.length);
+                long streamBytes = (threads.getThreadAllocatedBytes(id) - allocated) / ((long) rounds * messages.length);
+                System.out.println("format " + format + ": buffers " + time + "ns " + bytes + " bytes, streams "
+                        + streamTime + "ns " + streamBytes + " bytes per message");
+            }
+        }
+    }
+}
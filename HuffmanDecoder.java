@@ -0,0 +1,239 @@
+package com.simopr.smscompress.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Decode the codes of a trie with lookup tables instead of walking the
+ * nodes one bit at a time.
+ *
+ * The first table is indexed with the next PRIMARY_BITS bits of the message
+ * (fewer if the trie is not that deep) and gives the character and the length
+ * of its code. Codes longer than the table point to a secondary table indexed
+ * with the following bits, and so on.
+ *
+ * Each entry of the tables is an int:
+ *      0                                   no code (wrong message)
+ *      (length << 8) | character           a code of length bits
+ *      0x80000000 | (offset << 4) | bits   the code continues in the table at offset
+ *
+ * A decoder is immutable once built and can be shared between threads.
+ */
+public class HuffmanDecoder {
+
+    // number of bits looked up at once in the first table
+    public static final int PRIMARY_BITS = 10;
+
+    // number of bits looked up at once in the tables of the longer codes
+    public static final int SECONDARY_BITS = 6;
+
+    // all the tables, the first one starts at 0
+    private int[] table;
+
+    // number of entries used in table
+    private int size;
+
+    // number of bits used to index the first table
+    private final int rootBits;
+
+    /**
+     * Build the tables from the root of a trie
+     *
+     * @param root root of the trie (as read by Btree.readTrie())
+     */
+    public HuffmanDecoder(Node root) {
+        if (root == null) throw new NullPointerException();
+
+        if (root.isLeaf()) {
+            // one element in the trie: every code is "0", "1" is an error
+            this.rootBits = 1;
+            this.table = new int[2];
+            this.size = 2;
+            this.table[0] = (1 << 8) | (root.getCode() & 0xFF);
+        } else {
+            this.rootBits = Math.min(PRIMARY_BITS, height(root));
+            this.table = new int[1 << this.rootBits];
+            this.size = this.table.length;
+            this.fill(0, this.rootBits, root, 0, 0);
+        }
+    }
+
+    /**
+     * Helper function for the constructor
+     *
+     * Put the leaves under node in the table starting at base. The table is
+     * indexed with bits bits, node is at depth under the table root and is
+     * reached with the bits of prefix.
+     */
+    private void fill(int base, int bits, Node node, int depth, int prefix) {
+        // missing child: the entries stay empty
+        if (node == null) return;
+
+        if (node.isLeaf()) {
+            // every index starting with prefix leads to this leaf
+            int first = base + (prefix << (bits - depth));
+            int entry = (depth << 8) | (node.getCode() & 0xFF);
+            Arrays.fill(this.table, first, first + (1 << (bits - depth)), entry);
+            return;
+        }
+
+        if (depth == bits) {
+            // the code is longer than the table: continue in a new table
+            int subBits = Math.min(SECONDARY_BITS, height(node));
+            int sub = this.allocate(1 << subBits);
+            this.table[base + prefix] = 0x80000000 | (sub << 4) | subBits;
+            this.fill(sub, subBits, node, 0, 0);
+            return;
+        }
+
+        this.fill(base, bits, node.getLeft(), depth + 1, prefix << 1);
+        this.fill(base, bits, node.getRight(), depth + 1, (prefix << 1) | 1);
+    }
+
+    /**
+     * Reserve entries for a new table at the end of the tables
+     *
+     * @param entries number of entries of the new table
+     * @return offset of the new table
+     */
+    private int allocate(int entries) {
+        int offset = this.size;
+        this.size += entries;
+        if (this.size > this.table.length)
+            this.table = Arrays.copyOf(this.table, Math.max(this.size, this.table.length * 2));
+        return offset;
+    }
+
+    /**
+     * length of the longest path from node to a leaf
+     */
+    private static int height(Node node) {
+        if (node == null || node.isLeaf()) return 0;
+        return 1 + Math.max(height(node.getLeft()), height(node.getRight()));
+    }
+
+    /**
+     * Read one code from the reader
+     *
+     * @param reader cursor on the first bit of a code
+     * @return the character of the code (0 to 255)
+     */
+    public int decodeSymbol(BitReader reader) {
+        int c = this.tryDecodeSymbol(reader);
+        if (c < 0) throw new NullPointerException();
+        return c;
+    }
+
+    /**
+     * Read one code from the reader without throwing on a wrong message
+     * (see MessageValidator)
+     *
+     * @param reader cursor on the first bit of a code
+     * @return the character of the code (0 to 255), -1 if there is no code
+     * or if the message ends in the middle of the code
+     */
+    int tryDecodeSymbol(BitReader reader) {
+        int base = 0;
+        int bits = this.rootBits;
+        while (true) {
+            int entry = this.table[base + reader.peekBits(bits)];
+            if (entry > 0) {
+                int length = entry >>> 8;
+                if (length > reader.remaining()) return -1;
+                reader.skip(length);
+                return entry & 0xFF;
+            }
+            if (entry == 0 || bits > reader.remaining()) return -1;
+
+            reader.skip(bits);
+            base = (entry >>> 4) & 0x7FFFFFF;
+            bits = entry & 0xF;
+        }
+    }
+
+    /**
+     * Decode all the remaining bits of the reader and add the
+     * characters to the stream
+     *
+     * @param reader cursor on the first code of a compressed message
+     * @param decompressedMsg where to add the characters
+     */
+    public void decode(BitReader reader, Stream decompressedMsg) {
+        while (reader.remaining() > 0)
+            decompressedMsg.addByte((byte) this.decodeSymbol(reader));
+    }
+
+    /**
+     * Decode the message the same way Btree.expand() did before the tables:
+     * walk the trie from the root for each character. Used by main() as the
+     * reference to compare against.
+     */
+    private static void walk(Node root, BitReader reader, Stream decompressedMsg) {
+        while (reader.remaining() > 0) {
+            Node x = root;
+            if (x.isLeaf()) {
+                if (reader.readBit()) throw new NullPointerException();
+            } else {
+                while (!x.isLeaf()) {
+                    if (reader.readBit())
+                        x = x.getRight();
+                    else
+                        x = x.getLeft();
+                }
+            }
+            decompressedMsg.addByte(x.getCode());
+        }
+    }
+
+    /**
+     * Used for benchmarking the tables against the walk of the trie
+     * on short SMS and on long messages
+     * @param args used for testing
+     */
+    public static void main(String[] args) {
+
+        String sms = "Bonjour, votre rendez-vous est confirmé pour demain à 10h30. Merci de répondre OUI pour valider. مرحبا بكم";
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 8000)
+            text.append(sms).append(" ABCDEFGHIJKLMNOPQRSTUVWXYZ ").append(text.length()).append('\n');
+
+        String[] messages = {sms, text.toString()};
+        String[] names = {"short SMS", "long text"};
+
+        for (int m = 0; m < messages.length; m++) {
+            Stream compressed = Compression.compress(new Stream(messages[m]));
+            byte[] bytes = compressed.getBytes();
+
+            // parse the header once, the benchmark only measures the payload
+            BitReader header = new BitReader(bytes, 0, compressed.numberOfBits());
+            Btree btree = new Btree(header);
+            Node root = btree.getRoot();
+            HuffmanDecoder decoder = new HuffmanDecoder(root);
+            int offset = header.position();
+            int payload = compressed.numberOfBits() - offset;
+
+            Stream a = new Stream();
+            walk(root, new BitReader(bytes, offset, payload), a);
+            Stream b = new Stream();
+            decoder.decode(new BitReader(bytes, offset, payload), b);
+            assert(a.equals(b));
+            assert(Arrays.equals(a.getBytesWithoutLastPaddingByte(), messages[m].getBytes()));
+
+            int iterations = 4000000 / messages[m].length();
+            for (int warmup = 0; warmup < 3; warmup++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                    walk(root, new BitReader(bytes, offset, payload), new Stream(a.size()));
+                long walkTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                    decoder.decode(new BitReader(bytes, offset, payload), new Stream(a.size()));
+                long tableTime = System.nanoTime() - start;
+
+                System.out.println(names[m] + " (" + a.size() + "bytes)\twalk: " + walkTime / iterations + "ns"
+                        + "\ttables: " + tableTime / iterations + "ns"
+                        + "\tspeedup: " + String.format("%.2f", (double) walkTime / tableTime));
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.simopr.smscompress.algorithms;
+
+/**
+ * Encode the bytes of a message with a table of codes indexed by the byte
+ * value, instead of looking up a String of '0' and '1' for each byte.
+ *
+ * The codes are packed in a 64 bits accumulator which is written to the
+ * stream only when the next code does not fit in it anymore.
+ *
+ * Codes are stored in a long: with int frequencies a Huffman code is never
+ * longer than CanonicalCode.MAX_LENGTH (57) bits, so a code always fits in the
+ * accumulator after a flush.
+ */
+public class HuffmanEncoder {
+
+    // code of each byte (index: byte & 0xFF), right aligned
+    private final long[] codes = new long[256];
+
+    // length of the code of each byte, 0 if the byte has no code
+    private final byte[] lengths = new byte[256];
+
+    /**
+     * Build the table from the trie of a Btree
+     *
+     * @param btree a Btree built from the frequencies of a message
+     */
+    public HuffmanEncoder(Btree btree) {
+        Node root = btree.getRoot();
+        if (root.isLeaf()) {
+            // one element in the trie, its code is "0"
+            this.lengths[root.getCode() & 0xFF] = 1;
+        } else {
+            this.fill(root, 0L, 0);
+        }
+    }
+
+    /**
+     * Build the table from canonical codes
+     *
+     * @param code the canonical codes
+     */
+    public HuffmanEncoder(CanonicalCode code) {
+        long[] canonicalCodes = code.getCodes();
+        int[] canonicalLengths = code.getLengths();
+        for (int c = 0; c < 256; c++) {
+            this.codes[c] = canonicalCodes[c];
+            this.lengths[c] = (byte) canonicalLengths[c];
+        }
+    }
+
+    /**
+     * Helper function for the constructor
+     *
+     * recursively explore the trie to build the codes.
+     * If left, append 0 if right append 1, if leaf a code is reached.
+     */
+    private void fill(Node node, long code, int length) {
+        if (node.isLeaf()) {
+            if (length > CanonicalCode.MAX_LENGTH) throw new NullPointerException();
+            this.codes[node.getCode() & 0xFF] = code;
+            this.lengths[node.getCode() & 0xFF] = (byte) length;
+        } else {
+            this.fill(node.getLeft(), code << 1, length + 1);
+            this.fill(node.getRight(), (code << 1) | 1, length + 1);
+        }
+    }
+
+    /**
+     * Add the codes of length bytes of msg, starting at offset, to the stream
+     *
+     * @param msg the message to encode
+     * @param offset index of the first byte to encode
+     * @param length number of bytes to encode
+     * @param out the stream where the codes are added
+     */
+    public void encode(byte[] msg, int offset, int length, Stream out) {
+        long accumulator = 0;
+        int bits = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int c = msg[i] & 0xFF;
+            int codeLength = this.lengths[c];
+            if (codeLength == 0) throw new NullPointerException();
+
+            // flush the accumulator when the code does not fit anymore
+            if (bits + codeLength > 64) {
+                out.addBits(accumulator, bits);
+                accumulator = 0;
+                bits = 0;
+            }
+            accumulator = (accumulator << codeLength) | this.codes[c];
+            bits += codeLength;
+        }
+        out.addBits(accumulator, bits);
+    }
+
+    /**
+     * length of the code of a byte
+     *
+     * @param c the byte
+     * @return number of bits of its code, 0 if it has no code
+     */
+    public int length(byte c) {
+        return this.lengths[c & 0xFF];
+    }
+}
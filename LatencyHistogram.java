@@ -0,0 +1,169 @@
+package com.simopr.smscompress.algorithms;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds, recorded by many threads without
+ * locks (see CodecMetrics).
+ *
+ * The buckets are log-linear, like the HDR histograms: each power of 2 is
+ * cut in 8 buckets, so a value is known within 12.5%, from 1ns to hours in
+ * less than 500 buckets.
+ *
+ * The counts are split in stripes chosen by the thread, so the threads
+ * recording at the same time rarely write to the same array. A snapshot
+ * adds the stripes.
+ */
+public class LatencyHistogram {
+
+    // 2^SUB_BITS buckets per power of 2
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // buckets up to the highest long
+    static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray[] stripes;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        // a power of 2 of about twice the processors, at most 32 stripes
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = Math.min(32, Integer.highestOneBit(Math.max(1, processors) * 2 - 1) << 1);
+        this.stripes = new AtomicLongArray[stripes];
+        for (int i = 0; i < stripes; i++)
+            this.stripes[i] = new AtomicLongArray(BUCKETS);
+    }
+
+    /**
+     * Add a duration
+     *
+     * @param nanos the duration in nanoseconds (negative counted as 0)
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        this.stripes[(h >>> 16) & (this.stripes.length - 1)].incrementAndGet(bucket(nanos));
+        this.count.increment();
+        this.total.add(nanos);
+        this.max.accumulate(nanos);
+    }
+
+    /**
+     * Remove all the durations
+     */
+    public void reset() {
+        for (AtomicLongArray stripe : this.stripes)
+            for (int i = 0; i < BUCKETS; i++)
+                stripe.set(i, 0);
+        this.count.reset();
+        this.total.reset();
+        this.max.reset();
+    }
+
+    /**
+     * Copy the counts. The durations recorded during the copy may be
+     * partly counted.
+     *
+     * @return the durations recorded so far
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : this.stripes)
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] += stripe.get(i);
+        return new Snapshot(counts, this.count.sum(), this.total.sum(), this.max.get());
+    }
+
+    /**
+     * index of the bucket of a value
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * highest value of a bucket
+     */
+    static long highest(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * The durations of a histogram at a time
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * @return number of durations
+         */
+        public long count() {
+            return this.count;
+        }
+
+        /**
+         * @return longest duration in nanoseconds
+         */
+        public long max() {
+            return this.max;
+        }
+
+        /**
+         * @return average duration in nanoseconds, 0 if there is none
+         */
+        public double mean() {
+            return this.count == 0 ? 0 : (double) this.total / this.count;
+        }
+
+        /**
+         * The duration under which a percentage of the durations are, within 12.5%
+         *
+         * @param percentile from 0 to 100
+         * @return the duration in nanoseconds, 0 if there is none
+         */
+        public long percentile(double percentile) {
+            if (percentile < 0 || percentile > 100) throw new IllegalArgumentException();
+            long sum = 0;
+            for (long c : this.counts) sum += c;
+            if (sum == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * sum));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += this.counts[i];
+                if (seen >= rank) return Math.min(highest(i), this.max);
+            }
+            return this.max;
+        }
+
+        @Override
+        public String toString() {
+            return "count " + this.count + " mean " + Math.round(this.mean()) + "ns p50 " + this.percentile(50)
+                    + "ns p99 " + this.percentile(99) + "ns p99.9 " + this.percentile(99.9) + "ns max " + this.max + "ns";
+        }
+    }
+}
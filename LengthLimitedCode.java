@@ -0,0 +1,176 @@
+package com.simopr.smscompress.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * Code lengths of prefix codes no longer than a maximum length.
+ *
+ * A Btree gives the optimal (Huffman) code lengths, but on skewed frequencies
+ * a code can be much longer than the tables of the decoder or the accumulator
+ * of the encoder. When the Huffman codes are too long the lengths are computed
+ * with the package-merge algorithm, which gives the optimal lengths among the
+ * codes that respect the limit.
+ *
+ * Package-merge: each character is a coin of each denomination 2^-1 .. 2^-max
+ * worth its frequency. Starting from the smallest denomination, the coins are
+ * paired into packages (in order of value) and merged with the coins of the next
+ * denomination. The 2n - 2 cheapest items of the last list are selected, and the
+ * code length of a character is the number of its coins in the selection.
+ */
+public class LengthLimitedCode {
+
+    /**
+     * Get the code length of each character of a message, the lengths
+     * being no longer than maxLength.
+     *
+     * @param histogram frequency of each byte (see Compression.getHistogram)
+     * @param maxLength longest code allowed
+     * @return code length of the 256 characters (0 if not in the message)
+     */
+    public static int[] getCodeLengths(int[] histogram, int maxLength) {
+        if (maxLength < 1 || maxLength > CanonicalCode.MAX_LENGTH) throw new IllegalArgumentException();
+
+        // the Huffman codes when they respect the limit
+        int[] lengths = new Btree(histogram).getCodeLengths();
+        int longest = 0;
+        for (int length : lengths)
+            longest = Math.max(longest, length);
+        if (longest <= maxLength) return lengths;
+
+        // characters sorted by frequency then by value
+        long[] keys = new long[256];
+        int n = 0;
+        for (int c = 0; c < 256; c++) {
+            if (histogram[c] != 0)
+                keys[n++] = ((long) histogram[c] << 8) | c;
+        }
+        Arrays.sort(keys, 0, n);
+
+        if (maxLength < 31 && (1 << maxLength) < n) throw new IllegalArgumentException();
+
+        long[] leaves = new long[n];
+        int[] characters = new int[n];
+        for (int i = 0; i < n; i++) {
+            leaves[i] = keys[i] >>> 8;
+            characters[i] = (int) (keys[i] & 0xFF);
+        }
+
+        // the list of each denomination: value of the items and
+        // whether each item is a leaf (coin) or a package
+        long[][] values = new long[maxLength + 1][];
+        boolean[][] isLeaf = new boolean[maxLength + 1][];
+        values[maxLength] = leaves;
+        isLeaf[maxLength] = new boolean[n];
+        Arrays.fill(isLeaf[maxLength], true);
+
+        for (int level = maxLength - 1; level >= 1; level--) {
+            long[] previous = values[level + 1];
+            int packages = previous.length / 2;
+            long[] list = new long[n + packages];
+            boolean[] leaf = new boolean[n + packages];
+
+            // merge the coins and the packages of the previous list (coins first on ties)
+            int i = 0;
+            int p = 0;
+            for (int k = 0; k < list.length; k++) {
+                long packageValue = p < packages ? previous[2 * p] + previous[2 * p + 1] : Long.MAX_VALUE;
+                if (i < n && leaves[i] <= packageValue) {
+                    list[k] = leaves[i++];
+                    leaf[k] = true;
+                } else {
+                    list[k] = packageValue;
+                    p++;
+                }
+            }
+            values[level] = list;
+            isLeaf[level] = leaf;
+        }
+
+        // count the coins of each character in the selected items,
+        // the packages select the first items of the previous list
+        Arrays.fill(lengths, 0);
+        int selected = 2 * n - 2;
+        for (int level = 1; level <= maxLength && selected > 0; level++) {
+            int coins = 0;
+            int packages = 0;
+            for (int k = 0; k < selected; k++) {
+                if (isLeaf[level][k]) lengths[characters[coins++]]++;
+                else packages++;
+            }
+            selected = 2 * packages;
+        }
+        return lengths;
+    }
+
+    /**
+     * number of bits of the message coded with the lengths (without header)
+     *
+     * @param histogram frequency of each byte
+     * @param lengths code length of each byte
+     * @return size of the coded message in bits
+     */
+    public static long cost(int[] histogram, int[] lengths) {
+        long bits = 0;
+        for (int c = 0; c < 256; c++)
+            bits += (long) histogram[c] * lengths[c];
+        return bits;
+    }
+
+    /**
+     * Cost of limiting the code lengths: size of the message coded with the
+     * limited lengths divided by its size with the Huffman codes.
+     *
+     * @param histogram frequency of each byte
+     * @param maxLength longest code allowed
+     * @return 1.0 when the limit costs nothing, more otherwise
+     */
+    public static double limitCost(int[] histogram, int maxLength) {
+        long optimal = cost(histogram, new Btree(histogram).getCodeLengths());
+        long limited = cost(histogram, getCodeLengths(histogram, maxLength));
+        return (double) limited / optimal;
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     */
+    public static void main(String[] args) {
+
+        // Fibonacci frequencies give the longest Huffman codes
+        int[] histogram = new int[256];
+        int a = 1;
+        int b = 1;
+        for (int c = 0; c < 30; c++) {
+            histogram[c] = a;
+            int sum = a + b;
+            a = b;
+            b = sum;
+        }
+
+        int[] huffman = new Btree(histogram).getCodeLengths();
+        System.out.println("Huffman longest code: " + Arrays.stream(huffman).max().getAsInt() + "bits");
+
+        for (int maxLength : new int[]{11, 12, 15, 20}) {
+            int[] lengths = getCodeLengths(histogram, maxLength);
+            assert(Arrays.stream(lengths).max().getAsInt() <= maxLength);
+
+            // the lengths must describe a complete prefix code
+            new CanonicalCode(lengths);
+
+            System.out.println("limit " + maxLength + "bits: cost " + String.format("%.4f", limitCost(histogram, maxLength)));
+        }
+
+        // random frequencies
+        for (int testCases = 0; testCases < 2000; testCases++) {
+            int[] random = new int[256];
+            int n = 1 + (int) (Math.random() * 256);
+            for (int c = 0; c < n; c++)
+                random[(int) (Math.random() * 256)] = 1 + (int) Math.pow(2, Math.random() * 20);
+            int maxLength = 8 + (int) (Math.random() * 8);
+            int[] lengths = getCodeLengths(random, maxLength);
+            assert(Arrays.stream(lengths).max().getAsInt() <= maxLength);
+            new CanonicalCode(lengths);
+            assert(limitCost(random, maxLength) >= 1.0);
+        }
+    }
+}
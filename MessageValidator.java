@@ -0,0 +1,342 @@
+package com.simopr.smscompress.algorithms;
+
+import java.util.Random;
+
+/**
+ * Check if a message has been compressed by Compression, in one pass over
+ * its bits and without building the decompressed message.
+ *
+ * A message is compressed by us when compressing its decompressed content
+ * again gives exactly the same bits. Instead of decompressing then
+ * compressing, the validator:
+ *      - checks the structure of the header (N and the trie, or the canonical
+ *        header, or the number of the codebook) before building anything
+ *      - decodes the payload only counting the characters, and stops at the
+ *        first code that does not exist or that is cut by the end of the message
+ *      - checks that the header is the one compress() would write for these
+ *        counts: same N, same trie (same tie-breaking) or same code lengths,
+ *        same codebook
+ * The adaptive format has no header: every payload that decodes to its last
+ * bit is coded again the same way, so the characters are only decoded with
+ * the adaptive tree of a pooled codec, nothing is written.
+ * The payload is the codes of the characters, so when the header is the same
+ * the codes compress() would write are the bits that were just decoded.
+ *
+ * A decoder of Compression.getDecoderCache() is used when the header is
+ * already in the cache, but only peeked: the hits, the misses and the order
+ * of the cache are left to the decompressions. A header not in the cache is
+ * not built into a decoder, its codes are read bit by bit with the trie or
+ * with the canonical code lengths.
+ */
+public class MessageValidator {
+
+    /**
+     * Check if a message has been compressed by Compression (with the default
+     * limit of the canonical codes). Same result as decompressing the message
+     * then comparing it with its compression.
+     *
+     * @param compressed message to check
+     * @return true if compressed with our algorithm, false otherwise
+     */
+    public static boolean isCompressed(Stream compressed) {
+        if (compressed == null) return false;
+        try {
+            BitReader reader = new BitReader(compressed);
+            int format = Compression.readFormat(reader);
+            if (format == Compression.FORMAT_TRIE) return isCompressedTrie(reader);
+            if (format == Compression.FORMAT_CANONICAL) return isCompressedCanonical(reader);
+            if (format == Compression.FORMAT_ADAPTIVE) return isCompressedAdaptive(reader);
+            return isCompressedStatic(reader);
+        } catch (RuntimeException e) {
+            // a header that cannot be read
+            return false;
+        }
+    }
+
+    private static boolean isCompressedTrie(BitReader reader) {
+        int start = reader.position();
+
+        // n leaves of 9 bits and n - 1 internal nodes of 1 bit, then a payload
+        if (reader.remaining() < 8) return false;
+        int n = reader.peekBits(8);
+        if (n == 0) n = 256;
+        if (reader.remaining() < 8 + 10 * n) return false;
+
+        int end = DecoderCache.skipTrie(reader);
+        if (end < 0 || reader.remaining() == 0) return false;
+
+        // a decoder already built for this header, else the trie is walked bit by bit
+        HuffmanDecoder decoder = Compression.getDecoderCache().peek(Compression.FORMAT_TRIE, reader, start, end);
+        int[] histogram = new int[256];
+        if (decoder != null) {
+            if (!count(decoder, reader, histogram)) return false;
+        } else {
+            reader.seek(start);
+            Node root = new Btree(reader).getRoot();
+            if (!count(root, reader, histogram)) return false;
+        }
+
+        // the header compress() writes for these characters
+        Stream expected = new Stream();
+        int distinct = 0;
+        for (int c = 0; c < 256; c++)
+            if (histogram[c] != 0) distinct++;
+        expected.addBits(distinct & 0xFF, 8);
+        expected.addStream(new Btree(histogram).writeTrie());
+        return sameBits(reader, start, end, expected);
+    }
+
+    private static boolean isCompressedCanonical(BitReader reader) {
+        int start = reader.position();
+        int end = DecoderCache.skipCanonicalHeader(reader);
+        if (end < 0 || reader.remaining() == 0) return false;
+
+        // a decoder already built for this header, else the codes are read with the lengths
+        HuffmanDecoder decoder = Compression.getDecoderCache().peek(Compression.FORMAT_CANONICAL, reader, start, end);
+        int[] histogram = new int[256];
+        if (decoder != null) {
+            if (!count(decoder, reader, histogram)) return false;
+        } else {
+            reader.seek(start);
+            CanonicalCode code = CanonicalCode.readHeader(reader);
+            while (reader.remaining() > 0) {
+                int c = code.tryDecodeSymbol(reader);
+                if (c < 0) return false;
+                histogram[c]++;
+            }
+        }
+
+        Stream expected = new Stream();
+        CanonicalCode.fromHistogram(histogram, Compression.MAX_CODE_LENGTH).writeHeader(expected);
+        return sameBits(reader, start, end, expected);
+    }
+
+    private static boolean isCompressedStatic(BitReader reader) {
+        int id = reader.readBits(StaticCodebook.ID_BITS);
+        StaticCodebook codebook = StaticCodebook.get(id);
+        if (reader.remaining() == 0) return false;
+
+        int[] histogram = new int[256];
+        if (!count(codebook.getDecoder(), reader, histogram)) return false;
+        return StaticCodebook.best(histogram).getId() == id;
+    }
+
+    private static boolean isCompressedAdaptive(BitReader reader) {
+        if (reader.remaining() == 0) return false;
+
+        CodecPool codecs = Compression.getCodecPool();
+        HuffmanCodec codec = codecs.acquire();
+        try {
+            AdaptiveHuffman tree = codec.getAdaptive();
+            tree.reset();
+            while (reader.remaining() > 0)
+                if (tree.tryDecodeSymbol(reader) < 0) return false;
+            return true;
+        } finally {
+            codecs.release(codec);
+        }
+    }
+
+    /**
+     * Decode the remaining bits of the reader counting the characters
+     *
+     * @return false if a code does not exist or is cut by the end of the message
+     */
+    private static boolean count(HuffmanDecoder decoder, BitReader reader, int[] histogram) {
+        while (reader.remaining() > 0) {
+            int c = decoder.tryDecodeSymbol(reader);
+            if (c < 0) return false;
+            histogram[c]++;
+        }
+        return true;
+    }
+
+    /**
+     * Decode the remaining bits of the reader walking the trie, counting the characters
+     *
+     * @return false if a code does not exist or is cut by the end of the message
+     */
+    private static boolean count(Node root, BitReader reader, int[] histogram) {
+        while (reader.remaining() > 0) {
+            Node node = root;
+            if (node.isLeaf()) {
+                // a single character has the code "0"
+                if (reader.readBit()) return false;
+            } else {
+                while (node != null && !node.isLeaf()) {
+                    if (reader.remaining() == 0) return false;
+                    node = reader.readBit() ? node.getRight() : node.getLeft();
+                }
+                // a child missing from a wrong trie
+                if (node == null) return false;
+            }
+            histogram[node.getCode() & 0xFF]++;
+        }
+        return true;
+    }
+
+    /**
+     * Compare the bits of the reader from start to end with the expected bits
+     */
+    private static boolean sameBits(BitReader reader, int start, int end, Stream expected) {
+        if (expected.numberOfBits() != end - start) return false;
+
+        BitReader bits = new BitReader(expected);
+        reader.seek(start);
+        while (bits.remaining() > 0) {
+            int n = Math.min(32, bits.remaining());
+            if (bits.readBits(n) != reader.readBits(n)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The check done by Compression.checkDecompressible() before the validator,
+     * used by main() as the reference to compare against.
+     */
+    private static boolean recompress(Stream compressed) {
+        try {
+            Stream message = Compression.decompress(compressed);
+            if (message == null) return false;
+            int format = Compression.readFormat(new BitReader(compressed));
+            return Compression.compress(message, format).equals(compressed);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     */
+    public static void main(String[] args) {
+
+        Random random = new Random(7);
+        String letters = "aaaaaeeeeiioouu bcdfghlmnprst.,0123456789é";
+        int accepted = 0;
+
+        for (int testCases = 0; testCases < 30000; testCases++) {
+            // a compressed message, damaged or not, or random bits
+            Stream stream;
+            int kind = random.nextInt(4);
+            if (kind == 3) {
+                stream = new Stream();
+                int length = random.nextInt(400);
+                for (int i = 0; i < length; i++)
+                    stream.addBit(random.nextBoolean());
+            } else {
+                StringBuilder sms = new StringBuilder();
+                int length = 1 + random.nextInt(160);
+                for (int i = 0; i < length; i++)
+                    sms.append(letters.charAt(random.nextInt(letters.length())));
+                stream = Compression.compress(new Stream(sms.toString()), random.nextInt(4));
+
+                // flip a bit or cut the message
+                if (kind == 1 || kind == 2) {
+                    byte[] bytes = stream.getBytesWithoutLastPaddingByte();
+                    BitReader reader = new BitReader(stream);
+                    Stream damaged = new Stream();
+                    int cut = kind == 2 ? random.nextInt(stream.numberOfBits()) : stream.numberOfBits();
+                    int flip = kind == 1 ? random.nextInt(stream.numberOfBits()) : -1;
+                    for (int i = 0; i < cut; i++)
+                        damaged.addBit(reader.readBit() ^ (i == flip));
+                    stream = damaged;
+                }
+            }
+
+            boolean valid = isCompressed(stream);
+            assert(valid == recompress(stream));
+            if (valid) accepted++;
+        }
+        System.out.println(accepted + " compressed messages out of 30000");
+
+        // the validation does not touch the decoder cache, with or without the header in it
+        DecoderCache cache = Compression.getDecoderCache();
+        Stream[] checked = new Stream[400];
+        for (int i = 0; i < checked.length; i++) {
+            StringBuilder sms = new StringBuilder();
+            int length = 1 + random.nextInt(160);
+            for (int j = 0; j < length; j++)
+                sms.append(letters.charAt(random.nextInt(letters.length())));
+            checked[i] = i % 4 == 3 ? new Stream(sms.toString())
+                    : Compression.compress(new Stream(sms.toString()), i % 2);
+            if (i % 4 == 0) Compression.decompress(checked[i]);
+        }
+        long hits = cache.hits();
+        long misses = cache.misses();
+        int size = cache.size();
+        boolean[] valid = new boolean[checked.length];
+        for (int i = 0; i < checked.length; i++)
+            valid[i] = isCompressed(checked[i]);
+        assert(cache.hits() == hits && cache.misses() == misses && cache.size() == size);
+        for (int i = 0; i < checked.length; i++)
+            assert(valid[i] == (i % 4 != 3) && valid[i] == recompress(checked[i]));
+
+        // false positives documented by Compression.checkDecompressible()
+        int samples = 20000;
+        int plainAccepted = 0;
+        int randomAccepted = 0;
+        for (int i = 0; i < samples; i++) {
+            StringBuilder sms = new StringBuilder();
+            int length = 1 + random.nextInt(160);
+            for (int j = 0; j < length; j++)
+                sms.append(letters.charAt(random.nextInt(letters.length())));
+            if (isCompressed(new Stream(sms.toString()))) plainAccepted++;
+
+            byte[] bytes = new byte[1 + random.nextInt(140)];
+            random.nextBytes(bytes);
+            if (isCompressed(new Stream(bytes))) randomAccepted++;
+        }
+        System.out.println("accepted: plain SMS " + plainAccepted + ", random bytes " + randomAccepted + " out of " + samples);
+        assert(plainAccepted == 0);
+        assert(randomAccepted < samples / 1000);
+
+        // the percent of one bit flips accepted, at most, for each format
+        int[] flipLimits = {15, 22, 89, 100};
+        for (int format = Compression.FORMAT_TRIE; format <= Compression.FORMAT_ADAPTIVE; format++) {
+            int flipAccepted = 0;
+            for (int i = 0; i < samples; i++) {
+                StringBuilder sms = new StringBuilder();
+                int length = 1 + random.nextInt(160);
+                for (int j = 0; j < length; j++)
+                    sms.append(letters.charAt(random.nextInt(letters.length())));
+                Stream stream = Compression.compress(new Stream(sms.toString()), format);
+                BitReader reader = new BitReader(stream);
+                Stream flipped = new Stream();
+                int flip = random.nextInt(stream.numberOfBits());
+                for (int j = 0; j < stream.numberOfBits(); j++)
+                    flipped.addBit(reader.readBit() ^ (j == flip));
+                if (isCompressed(flipped)) flipAccepted++;
+            }
+            System.out.println("format " + format + ": " + flipAccepted + " bit flips accepted out of " + samples);
+            assert(flipAccepted * 100 < flipLimits[format] * samples);
+        }
+
+        // plain SMS: compare the time of the two checks
+        Stream[] plain = new Stream[1000];
+        for (int i = 0; i < plain.length; i++)
+            plain[i] = new Stream("Bonjour, rendez-vous demain a 10h30 devant la gare. Appelle-moi " + i);
+        for (int warmup = 0; warmup < 3; warmup++) {
+            long begin = System.nanoTime();
+            for (Stream s : plain) isCompressed(s);
+            long validator = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (Stream s : plain) recompress(s);
+            long reference = System.nanoTime() - begin;
+            System.out.println("plain SMS: validator " + validator / plain.length + "ns, recompress " + reference / plain.length + "ns");
+        }
+
+        Stream[] compressed = new Stream[1000];
+        for (int i = 0; i < compressed.length; i++)
+            compressed[i] = Compression.compress(plain[i]);
+        for (int warmup = 0; warmup < 3; warmup++) {
+            long begin = System.nanoTime();
+            for (Stream s : compressed) assert(isCompressed(s));
+            long validator = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (Stream s : compressed) assert(recompress(s));
+            long reference = System.nanoTime() - begin;
+            System.out.println("compressed SMS: validator " + validator / compressed.length + "ns, recompress " + reference / compressed.length + "ns");
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.simopr.smscompress.algorithms;
+
+import java.util.Random;
+
+/**
+ * Size of a message in each encoding, and number of SMS needed to send it,
+ * without compressing it.
+ *
+ * The size of a compressed message is known from the frequencies of its
+ * bytes: the header depends only on the code lengths, and the content is
+ * the sum of frequency * code length of each byte.
+ *
+ * A compressed message is sent as 7 bits characters (see Ascii7bits.encode):
+ * its bits, the '1' of the padding limit, and zeros up to a whole character.
+ * In a PDU (see GsmPdu) the characters '{' and '€' take 2 septets, which
+ * cannot be known without the bits: compressedSeptets() is the number of
+ * characters, the number of septets is at least this.
+ */
+public class SizeEstimator {
+
+    // the message as it is, in the GSM 7 bits alphabet
+    public static final int ENCODING_GSM7 = 0;
+    // the message as it is, in UCS-2 (16 bits per char)
+    public static final int ENCODING_UCS2 = 1;
+    // the compressed message, in 7 bits characters
+    public static final int ENCODING_COMPRESSED = 2;
+
+    // septets of one SMS, and of each part of a multipart SMS (the rest is the UDH)
+    public static final int GSM7_SINGLE = 160;
+    public static final int GSM7_PART = 153;
+
+    // UCS-2 chars of one SMS, and of each part of a multipart SMS
+    public static final int UCS2_SINGLE = 70;
+    public static final int UCS2_PART = 67;
+
+    /**
+     * Size of a message in each encoding
+     */
+    public static final class Plan {
+
+        private final int gsm7Septets;
+        private final int ucs2Chars;
+        private final int format;
+        private final long compressedBits;
+
+        private Plan(int gsm7Septets, int ucs2Chars, int format, long compressedBits) {
+            this.gsm7Septets = gsm7Septets;
+            this.ucs2Chars = ucs2Chars;
+            this.format = format;
+            this.compressedBits = compressedBits;
+        }
+
+        /**
+         * @return number of septets of the message in GSM 7 bits, -1 if not possible
+         */
+        public int gsm7Septets() {
+            return this.gsm7Septets;
+        }
+
+        /**
+         * @return number of SMS of the message in GSM 7 bits, -1 if not possible
+         */
+        public int gsm7Segments() {
+            return this.gsm7Septets < 0 ? -1 : segments(this.gsm7Septets, GSM7_SINGLE, GSM7_PART);
+        }
+
+        /**
+         * @return number of UCS-2 chars of the message
+         */
+        public int ucs2Chars() {
+            return this.ucs2Chars;
+        }
+
+        /**
+         * @return number of SMS of the message in UCS-2
+         */
+        public int ucs2Segments() {
+            return segments(this.ucs2Chars, UCS2_SINGLE, UCS2_PART);
+        }
+
+        /**
+         * @return the format giving the smallest compressed message
+         */
+        public int compressedFormat() {
+            return this.format;
+        }
+
+        /**
+         * @return number of bits of the compressed message (Stream.numberOfBits())
+         */
+        public long compressedBits() {
+            return this.compressedBits;
+        }
+
+        /**
+         * @return number of 7 bits characters of the compressed message
+         */
+        public int compressedSeptets() {
+            // the bits and the '1' of the padding limit
+            return (int) ((this.compressedBits + 1 + 6) / 7);
+        }
+
+        /**
+         * @return number of SMS of the compressed message
+         */
+        public int compressedSegments() {
+            return segments(this.compressedSeptets(), GSM7_SINGLE, GSM7_PART);
+        }
+
+        /**
+         * The encoding needing the fewest SMS. On ties the message is sent as it
+         * is: GSM 7 bits first, then UCS-2, compressed only when it saves an SMS.
+         *
+         * @return ENCODING_GSM7, ENCODING_UCS2 or ENCODING_COMPRESSED
+         */
+        public int cheapest() {
+            int plain = this.gsm7Septets >= 0 ? this.gsm7Segments() : this.ucs2Segments();
+            if (this.compressedSegments() < plain) return ENCODING_COMPRESSED;
+            return this.gsm7Septets >= 0 ? ENCODING_GSM7 : ENCODING_UCS2;
+        }
+    }
+
+    /**
+     * Size of a text message in each encoding. The compressed message is
+     * the compression of new Stream(text).
+     *
+     * @param text the message to send (at least one char)
+     * @return the sizes of the message
+     */
+    public static Plan plan(String text) {
+        if (text == null || text.length() == 0) throw new NullPointerException();
+
+        byte[] message = text.getBytes();
+        int[] histogram = Compression.getHistogram(message);
+
+        // the smallest format, the first one on ties
+        int best = Compression.FORMAT_TRIE;
+        long bestBits = compressedBits(histogram, best);
+        for (int format : new int[]{Compression.FORMAT_CANONICAL, Compression.FORMAT_STATIC}) {
+            long bits = compressedBits(histogram, format);
+            if (bits < bestBits) {
+                best = format;
+                bestBits = bits;
+            }
+        }
+        return new Plan(Ascii7bits.gsmSeptets(text), text.length(), best, bestBits);
+    }
+
+    /**
+     * Number of bits of a message compressed in a format, same as
+     * Compression.compress(message, format).numberOfBits()
+     *
+     * @param histogram frequency of each byte of the message (see Compression.getHistogram)
+     * @param format FORMAT_TRIE, FORMAT_CANONICAL or FORMAT_STATIC (not the
+     *               opt-in FORMAT_ADAPTIVE, whose size depends on the order of the bytes)
+     * @return number of bits of the compressed message
+     */
+    public static long compressedBits(int[] histogram, int format) {
+        if (format == Compression.FORMAT_TRIE) {
+            // N, then n leaves of 9 bits and n - 1 internal nodes of 1 bit
+            int[] lengths = new Btree(histogram).getCodeLengths();
+            int n = 0;
+            for (int c = 0; c < 256; c++)
+                if (histogram[c] != 0) n++;
+            return 8 + 10 * n - 1 + LengthLimitedCode.cost(histogram, lengths);
+        }
+        if (format == Compression.FORMAT_CANONICAL) {
+            CanonicalCode code = CanonicalCode.fromHistogram(histogram, Compression.MAX_CODE_LENGTH);
+            return Compression.FORMAT_PREFIX_BITS + code.headerBits()
+                    + LengthLimitedCode.cost(histogram, code.getLengths());
+        }
+        if (format == Compression.FORMAT_STATIC) {
+            return Compression.FORMAT_PREFIX_BITS + StaticCodebook.ID_BITS
+                    + StaticCodebook.best(histogram).cost(histogram);
+        }
+        throw new IllegalArgumentException();
+    }
+
+    /**
+     * number of SMS needed for a message
+     *
+     * @param units number of septets or chars of the message
+     * @param single number of units of one SMS
+     * @param part number of units of each part of a multipart SMS
+     * @return number of SMS
+     */
+    public static int segments(int units, int single, int part) {
+        if (units <= single) return 1;
+        return (units + part - 1) / part;
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     */
+    public static void main(String[] args) {
+
+        // the estimations are the sizes of the compressed messages
+        Random random = new Random(3);
+        String letters = "aaaaaeeeeiioouu bcdfghlmnprst.,0123456789€{";
+        for (int testCases = 0; testCases < 3000; testCases++) {
+            StringBuilder sms = new StringBuilder();
+            int length = 1 + random.nextInt(600);
+            for (int i = 0; i < length; i++)
+                sms.append(letters.charAt(random.nextInt(letters.length())));
+            String text = sms.toString();
+            int[] histogram = Compression.getHistogram(text.getBytes());
+
+            for (int format = Compression.FORMAT_TRIE; format <= Compression.FORMAT_STATIC; format++) {
+                Stream compressed = Compression.compress(new Stream(text), format);
+                assert(compressedBits(histogram, format) == compressed.numberOfBits());
+            }
+
+            Plan plan = plan(text);
+            Stream compressed = Compression.compress(new Stream(text), plan.compressedFormat());
+            assert(plan.compressedBits() == compressed.numberOfBits());
+            assert(plan.compressedSeptets() == Ascii7bits.encode(compressed).length());
+            assert(plan.compressedSeptets() <= GsmPdu.septets(compressed));
+        }
+
+        assert(segments(160, GSM7_SINGLE, GSM7_PART) == 1);
+        assert(segments(161, GSM7_SINGLE, GSM7_PART) == 2);
+        assert(segments(306, GSM7_SINGLE, GSM7_PART) == 2);
+        assert(segments(307, GSM7_SINGLE, GSM7_PART) == 3);
+        assert(segments(71, UCS2_SINGLE, UCS2_PART) == 2);
+
+        String[] messages = {
+                "Votre code est 123456",
+                "Bonjour, votre rendez-vous est confirmé pour demain à 10h30. Merci de répondre OUI pour valider. "
+                        + "En cas d'empêchement, appelez le secrétariat au 01 23 45 67 89 avant 18h.",
+                "مرحبا، نذكركم بموعدكم غدا على الساعة العاشرة والنصف صباحا. يرجى الحضور قبل الموعد بعشر دقائق. شكرا"
+        };
+        String[] names = {"GSM7", "UCS2", "COMPRESSED"};
+        for (String message : messages) {
+            Plan plan = plan(message);
+            System.out.println("GSM7 " + plan.gsm7Segments() + " UCS2 " + plan.ucs2Segments()
+                    + " compressed " + plan.compressedSegments() + " (format " + plan.compressedFormat() + ")"
+                    + " -> " + names[plan.cheapest()]);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.simopr.smscompress.algorithms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Put back together the parts of compressed messages cut by SmsSegmenter,
+ * received in any order, and decompress each message when its last part
+ * arrives.
+ *
+ * The parts are unpacked as soon as they follow the parts already unpacked,
+ * and are not kept after: a message waiting for its parts only holds its
+ * codes so far and the parts received out of order. The number of messages
+ * waiting is bounded, the oldest one is dropped when a new one arrives.
+ *
+ * Use one reassembler per sender: the references only identify the messages
+ * of a same sender.
+ */
+public class SmsReassembler {
+
+    // number of messages waiting for their parts by default
+    public static final int DEFAULT_MAX_PENDING = 64;
+
+    private final int maxPending;
+
+    // messages waiting for their parts, the oldest first
+    private final LinkedHashMap<Integer, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * A message waiting for its parts
+     */
+    private static final class Pending {
+
+        // the parts received before the parts preceding them
+        private final SmsSegmenter.Part[] parts;
+
+        // the codes of the parts unpacked so far
+        private final Stream codes = new Stream();
+
+        // number of the next part to unpack (from 0)
+        private int next = 0;
+
+        Pending(int total) {
+            this.parts = new SmsSegmenter.Part[total];
+        }
+    }
+
+    public SmsReassembler() {
+        this(DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param maxPending number of messages that can wait for their parts
+     */
+    public SmsReassembler(int maxPending) {
+        if (maxPending < 1) throw new IllegalArgumentException();
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Add a received part
+     *
+     * @param part the part
+     * @return the decompressed message when it is the last part, null otherwise
+     */
+    public synchronized Stream add(SmsSegmenter.Part part) {
+        if (part == null) throw new NullPointerException();
+
+        if (part.getTotal() == 1) {
+            Stream codes = new Stream();
+            part.unpack(codes);
+            return decompress(codes);
+        }
+
+        Pending message = this.pending.get(part.getReference());
+        if (message == null) {
+            if (this.pending.size() == this.maxPending) {
+                Iterator<Integer> oldest = this.pending.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            message = new Pending(part.getTotal());
+            this.pending.put(part.getReference(), message);
+        }
+        if (message.parts.length != part.getTotal()) throw new NullPointerException();
+
+        // already received
+        int index = part.getSequence() - 1;
+        if (index < message.next || message.parts[index] != null) return null;
+        message.parts[index] = part;
+
+        // unpack the parts that follow the parts already unpacked
+        try {
+            while (message.next < message.parts.length && message.parts[message.next] != null) {
+                message.parts[message.next].unpack(message.codes);
+                message.parts[message.next] = null;
+                message.next++;
+            }
+        } catch (RuntimeException e) {
+            this.pending.remove(part.getReference());
+            throw e;
+        }
+        if (message.next < message.parts.length) return null;
+
+        this.pending.remove(part.getReference());
+        return decompress(message.codes);
+    }
+
+    /**
+     * number of messages waiting for their parts
+     *
+     * @return number of incomplete messages
+     */
+    public synchronized int pending() {
+        return this.pending.size();
+    }
+
+    /**
+     * Decompress the message of all the codes of its parts
+     */
+    private static Stream decompress(Stream codes) {
+        Stream message = Compression.decompress(GsmPdu.fromCodes(codes));
+        if (message == null) throw new NullPointerException();
+        return message;
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     */
+    public static void main(String[] args) {
+
+        Random random = new Random(11);
+        String letters = "aaaaaeeeeiioouu bcdfghlmnprst.,0123456789éàç€{}";
+        SmsReassembler reassembler = new SmsReassembler();
+
+        for (int testCases = 0; testCases < 2000; testCases++) {
+            StringBuilder sms = new StringBuilder();
+            int length = 1 + random.nextInt(2000);
+            for (int i = 0; i < length; i++)
+                sms.append(letters.charAt(random.nextInt(letters.length())));
+            Stream message = new Stream(sms.toString());
+            Stream compressed = Compression.compress(message, random.nextInt(4));
+
+            List<SmsSegmenter.Part> parts = SmsSegmenter.split(compressed, testCases & 0xFF);
+            for (SmsSegmenter.Part part : parts) {
+                assert(part.getUserDataLength() <= SmsSegmenter.SINGLE_SEPTETS);
+                assert(part.getUserData().length <= 140);
+            }
+            if (parts.size() > 1)
+                assert(parts.get(0).getUserDataLength() == SmsSegmenter.SINGLE_SEPTETS
+                        || parts.get(0).getUserDataLength() == SmsSegmenter.SINGLE_SEPTETS - 1);
+
+            // received in any order, as the receiver reads them from the PDUs
+            List<SmsSegmenter.Part> received = new ArrayList<>();
+            for (SmsSegmenter.Part part : parts)
+                received.add(SmsSegmenter.Part.fromUserData(part.getUserData(), part.getUserDataLength(), part.hasHeader()));
+            Collections.shuffle(received, random);
+
+            Stream result = null;
+            for (int i = 0; i < received.size(); i++) {
+                result = reassembler.add(received.get(i));
+                assert((result == null) == (i < received.size() - 1));
+            }
+            assert(result.equals(message));
+            assert(reassembler.pending() == 0);
+        }
+
+        // the messages waiting are bounded
+        SmsReassembler small = new SmsReassembler(2);
+        for (int reference = 0; reference < 5; reference++) {
+            StringBuilder sms = new StringBuilder();
+            for (int i = 0; i < 1000; i++)
+                sms.append(letters.charAt(random.nextInt(letters.length())));
+            List<SmsSegmenter.Part> parts = SmsSegmenter.split(Compression.compress(new Stream(sms.toString())), reference);
+            assert(small.add(parts.get(1)) == null);
+        }
+        assert(small.pending() == 2);
+
+        // a message cut in the middle of an extension character
+        Stream braces = Ascii7bits.decode("{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{{a");
+        List<SmsSegmenter.Part> parts = SmsSegmenter.split(braces, 1);
+        assert(parts.size() == 2);
+        assert(parts.get(0).getUserDataLength() == SmsSegmenter.SINGLE_SEPTETS - 1);
+    }
+}
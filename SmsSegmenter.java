@@ -0,0 +1,220 @@
+package com.simopr.smscompress.algorithms;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cut a compressed message in the parts of a concatenated SMS, each part
+ * being the user data of a PDU (see GsmPdu).
+ *
+ * A message of up to 160 septets is sent in one SMS without header. A longer
+ * message is cut in parts of up to 153 septets, each one starting with a user
+ * data header (3GPP TS 23.040) of 6 octets and 1 fill bit (7 septets):
+ *      length of the header = 5
+ *      concatenated SMS, 8 bits reference = 0x00, length = 3
+ *      reference, number of parts, number of the part (from 1)
+ *
+ * An extension character (ESC + code) is never cut between two parts.
+ * The parts are put back together by SmsReassembler.
+ */
+public class SmsSegmenter {
+
+    // septets of a message sent in one SMS
+    public static final int SINGLE_SEPTETS = 160;
+
+    // septets of the content of each part of a concatenated SMS
+    public static final int PART_SEPTETS = 153;
+
+    // octets of the user data header of a part
+    static final int HEADER_OCTETS = 6;
+
+    // septets taken by the header and its fill bit
+    static final int HEADER_SEPTETS = 7;
+
+    // zeros between the header and the first septet
+    static final int FILL_BITS = HEADER_SEPTETS * 7 - HEADER_OCTETS * 8;
+
+    // information elements of the concatenated SMS (8 bits and 16 bits references)
+    private static final int CONCATENATED_8 = 0x00;
+    private static final int CONCATENATED_16 = 0x08;
+
+    // most parts of a concatenated SMS
+    public static final int MAX_PARTS = 255;
+
+    /**
+     * A part of a message: the user data of a PDU
+     */
+    public static final class Part {
+
+        private final int reference;
+        private final int total;
+        private final int sequence;
+        private final byte[] userData;
+        private final int userDataLength;
+        private final boolean header;
+
+        private Part(int reference, int total, int sequence, byte[] userData, int userDataLength, boolean header) {
+            this.reference = reference;
+            this.total = total;
+            this.sequence = sequence;
+            this.userData = userData;
+            this.userDataLength = userDataLength;
+            this.header = header;
+        }
+
+        /**
+         * Read a part received in a PDU
+         *
+         * @param userData the octets of the user data (TP-UD)
+         * @param userDataLength number of septets, header included (TP-UDL)
+         * @param header true if the user data starts with a header (TP-UDHI)
+         * @return the part
+         */
+        public static Part fromUserData(byte[] userData, int userDataLength, boolean header) {
+            if (userData == null || userDataLength < 1) throw new NullPointerException();
+            if (!header) return new Part(0, 1, 1, userData, userDataLength, false);
+
+            // find the concatenated SMS element in the header
+            int headerLength = userData[0] & 0xFF;
+            if (headerLength + 1 > userData.length) throw new NullPointerException();
+            int i = 1;
+            while (i + 1 < headerLength + 1) {
+                int element = userData[i] & 0xFF;
+                int length = userData[i + 1] & 0xFF;
+                if (i + 2 + length > headerLength + 1) throw new NullPointerException();
+                if (element == CONCATENATED_8 && length == 3)
+                    return concatenated(userData, userDataLength, userData[i + 2] & 0xFF, i + 3);
+                if (element == CONCATENATED_16 && length == 4) {
+                    int reference = ((userData[i + 2] & 0xFF) << 8) | (userData[i + 3] & 0xFF);
+                    return concatenated(userData, userDataLength, reference, i + 4);
+                }
+                i += 2 + length;
+            }
+            // a header without concatenation: a message in one SMS
+            return new Part(0, 1, 1, userData, userDataLength, true);
+        }
+
+        private static Part concatenated(byte[] userData, int userDataLength, int reference, int index) {
+            int total = userData[index] & 0xFF;
+            int sequence = userData[index + 1] & 0xFF;
+            if (total == 0 || sequence == 0 || sequence > total) throw new NullPointerException();
+            return new Part(reference, total, sequence, userData, userDataLength, true);
+        }
+
+        public int getReference() {
+            return this.reference;
+        }
+
+        /**
+         * @return number of parts of the message
+         */
+        public int getTotal() {
+            return this.total;
+        }
+
+        /**
+         * @return number of the part, from 1 to getTotal()
+         */
+        public int getSequence() {
+            return this.sequence;
+        }
+
+        /**
+         * @return the octets of the user data (TP-UD)
+         */
+        public byte[] getUserData() {
+            return this.userData;
+        }
+
+        /**
+         * @return number of septets of the user data, header included (TP-UDL)
+         */
+        public int getUserDataLength() {
+            return this.userDataLength;
+        }
+
+        /**
+         * @return true if the user data starts with a header (TP-UDHI)
+         */
+        public boolean hasHeader() {
+            return this.header;
+        }
+
+        /**
+         * Add the Ascii7bits codes of the content of the part to a stream
+         */
+        void unpack(Stream codes) {
+            if (!this.header) {
+                GsmPdu.unpack(ByteBuffer.wrap(this.userData), this.userDataLength, 0, codes);
+                return;
+            }
+            // the content starts on the septet following the header
+            int headerOctets = (this.userData[0] & 0xFF) + 1;
+            int headerSeptets = (headerOctets * 8 + 6) / 7;
+            int septets = this.userDataLength - headerSeptets;
+            if (septets <= 0) throw new NullPointerException();
+
+            ByteBuffer content = ByteBuffer.wrap(this.userData);
+            content.position(headerOctets);
+            GsmPdu.unpack(content, septets, headerSeptets * 7 - headerOctets * 8, codes);
+        }
+    }
+
+    /**
+     * Cut a compressed message in the parts of a concatenated SMS
+     *
+     * @param compressed the compressed message
+     * @param reference reference of the message, the same in all its parts (0 to 255)
+     * @return the parts in order, one part without header if the message fits in one SMS
+     */
+    public static List<Part> split(Stream compressed, int reference) {
+        if (reference < 0 || reference > 255) throw new IllegalArgumentException();
+
+        int septets = GsmPdu.septets(compressed);
+        List<Part> parts = new ArrayList<>();
+        if (septets <= SINGLE_SEPTETS) {
+            parts.add(new Part(0, 1, 1, GsmPdu.encode(compressed), septets, false));
+            return parts;
+        }
+
+        int total = countParts(compressed);
+        if (total > MAX_PARTS) throw new IllegalArgumentException();
+
+        BitReader codes = GsmPdu.codes(compressed);
+        for (int sequence = 1; sequence <= total; sequence++) {
+            ByteBuffer userData = ByteBuffer.allocate(HEADER_OCTETS + (FILL_BITS + PART_SEPTETS * 7 + 7) / 8);
+            userData.put((byte) (HEADER_OCTETS - 1));
+            userData.put((byte) CONCATENATED_8);
+            userData.put((byte) 3);
+            userData.put((byte) reference);
+            userData.put((byte) total);
+            userData.put((byte) sequence);
+            int written = GsmPdu.pack(codes, PART_SEPTETS, userData, FILL_BITS);
+
+            byte[] bytes = new byte[userData.position()];
+            System.arraycopy(userData.array(), 0, bytes, 0, bytes.length);
+            parts.add(new Part(reference, total, sequence, bytes, HEADER_SEPTETS + written, true));
+        }
+        return parts;
+    }
+
+    /**
+     * number of parts of PART_SEPTETS septets needed for the message
+     */
+    static int countParts(Stream compressed) {
+        BitReader codes = GsmPdu.codes(compressed);
+        int parts = 1;
+        int septets = 0;
+        while (codes.remaining() > 0) {
+            int width = GsmPdu.width(codes.peekBits(7));
+            codes.skip(Math.min(7, codes.remaining()));
+            if (septets + width > PART_SEPTETS) {
+                parts++;
+                septets = 0;
+            }
+            septets += width;
+        }
+        return parts;
+    }
+}
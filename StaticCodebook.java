@@ -0,0 +1,188 @@
+package com.simopr.smscompress.algorithms;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pre-built codes shared by both sides, so the message only carries the
+ * number of the codebook instead of a trie (see Compression.FORMAT_STATIC).
+ *
+ * The codes are canonical codes built once per JVM from fixed frequencies.
+ * Every byte has a code, so any message can be compressed with any codebook.
+ *
+ * The frequencies are part of the format: changing them changes the codes
+ * and the messages compressed before could not be decompressed anymore.
+ * The characters are written with their unicode escapes so the codes do
+ * not depend on the encoding of this file.
+ */
+public class StaticCodebook {
+
+    // latin letters, weighted for French and English texts
+    public static final int LATIN = 0;
+    // arabic letters in UTF-8
+    public static final int ARABIC = 1;
+    // digits, for one time passwords and numeric notifications
+    public static final int NUMERIC = 2;
+
+    // number of bits used to send the number of the codebook
+    public static final int ID_BITS = 2;
+
+    // the codebooks, built once
+    private static final StaticCodebook[] CODEBOOKS = {
+            new StaticCodebook(LATIN, latinFrequencies()),
+            new StaticCodebook(ARABIC, arabicFrequencies()),
+            new StaticCodebook(NUMERIC, numericFrequencies())
+    };
+
+    // number of the codebook
+    private final int id;
+
+    // code length of each byte
+    private final int[] lengths;
+
+    // canonical code of each byte, right aligned on its length
+    private final long[] codes;
+
+    private final HuffmanEncoder encoder;
+    private final HuffmanDecoder decoder;
+
+    private StaticCodebook(int id, int[] frequencies) {
+        CanonicalCode code = CanonicalCode.fromHistogram(frequencies, Compression.MAX_CODE_LENGTH);
+        this.id = id;
+        this.lengths = code.getLengths();
+        this.codes = code.getCodes();
+        this.encoder = new HuffmanEncoder(code);
+        this.decoder = new HuffmanDecoder(code.toTree());
+    }
+
+    /**
+     * Get a codebook by its number
+     *
+     * @param id LATIN, ARABIC or NUMERIC
+     * @return the codebook
+     */
+    public static StaticCodebook get(int id) {
+        if (id < 0 || id >= CODEBOOKS.length) throw new NullPointerException();
+        return CODEBOOKS[id];
+    }
+
+    /**
+     * Get the codebook giving the smallest compressed message
+     * (the first one on ties)
+     *
+     * @param histogram frequency of each byte of the message
+     * @return the best codebook
+     */
+    public static StaticCodebook best(int[] histogram) {
+        StaticCodebook best = CODEBOOKS[0];
+        long bestCost = best.cost(histogram);
+        for (int i = 1; i < CODEBOOKS.length; i++) {
+            long cost = CODEBOOKS[i].cost(histogram);
+            if (cost < bestCost) {
+                best = CODEBOOKS[i];
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * number of bits of the message coded with this codebook (without header)
+     *
+     * @param histogram frequency of each byte of the message
+     * @return size of the coded message in bits
+     */
+    public long cost(int[] histogram) {
+        return LengthLimitedCode.cost(histogram, this.lengths);
+    }
+
+    /**
+     * the code length of each character
+     *
+     * @return 256 lengths (shared, do not modify)
+     */
+    int[] getLengths() {
+        return this.lengths;
+    }
+
+    /**
+     * the code of each character
+     *
+     * @return 256 codes (shared, do not modify)
+     */
+    long[] getCodes() {
+        return this.codes;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public HuffmanEncoder getEncoder() {
+        return this.encoder;
+    }
+
+    public HuffmanDecoder getDecoder() {
+        return this.decoder;
+    }
+
+    /**
+     * Add weight to the frequency of the UTF-8 bytes of each character
+     */
+    private static void add(int[] frequencies, String characters, int weight) {
+        for (byte b : characters.getBytes(StandardCharsets.UTF_8))
+            frequencies[b & 0xFF] += weight;
+    }
+
+    /**
+     * Every byte appears at least once so that it has a code
+     */
+    private static int[] baseFrequencies() {
+        int[] frequencies = new int[256];
+        for (int c = 0; c < 256; c++)
+            frequencies[c] = 1;
+        return frequencies;
+    }
+
+    private static int[] latinFrequencies() {
+        int[] frequencies = baseFrequencies();
+        add(frequencies, " ", 170);
+        add(frequencies, "e", 120);
+        add(frequencies, "asitnr", 60);
+        add(frequencies, "uoldc", 35);
+        // é
+        add(frequencies, "pmvqfbgh\u00e9", 15);
+        add(frequencies, ".,'0123456789", 8);
+        add(frequencies, "ABCDEFGHIJKLMNOPQRSTUVWXYZ\n", 4);
+        // à è ù ç ê â î ô
+        add(frequencies, "jxyzwk!?:;-()/@\u00e0\u00e8\u00f9\u00e7\u00ea\u00e2\u00ee\u00f4", 3);
+        return frequencies;
+    }
+
+    private static int[] arabicFrequencies() {
+        int[] frequencies = baseFrequencies();
+        add(frequencies, " ", 150);
+        // alef lam
+        add(frequencies, "\u0627\u0644", 80);
+        // yeh meem waw noon heh reh teh beh
+        add(frequencies, "\u064a\u0645\u0648\u0646\u0647\u0631\u062a\u0628", 35);
+        // teh marbuta ain feh dal kaf seen qaf hah jeem sheen tah sad khah
+        add(frequencies, "\u0629\u0639\u0641\u062f\u0643\u0633\u0642\u062d\u062c\u0634\u0637\u0635\u062e", 15);
+        // zain thal theh ghain dad zah hamza, alef with hamza above / below / madda,
+        // alef maksura, yeh with hamza, waw with hamza
+        add(frequencies, "\u0632\u0630\u062b\u063a\u0636\u0638\u0621\u0623\u0625\u0622\u0649\u0626\u0624", 5);
+        // arabic comma and question mark
+        add(frequencies, "0123456789.,!\u060c\u061f\n", 4);
+        add(frequencies, "abcdefghijklmnopqrstuvwxyz", 2);
+        return frequencies;
+    }
+
+    private static int[] numericFrequencies() {
+        int[] frequencies = baseFrequencies();
+        add(frequencies, "0123456789", 100);
+        add(frequencies, " ", 50);
+        add(frequencies, ".:-", 10);
+        add(frequencies, "ecodtrvsinaouyl", 10);
+        add(frequencies, "ABCDEFGHIJKLMNOPQRSTUVWXYZbfghjkmpqwxz\n", 3);
+        return frequencies;
+    }
+}
@@ -1,6 +1,6 @@
 package com.simopr.smscompress.algorithms;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -26,12 +26,7 @@ public class Stream implements Iterable<Boolean> {
 
         @Override
         public Boolean next() {
-            Byte b = stream.get(bytePosIter);
-            boolean result ;
-            if ((b & (0b10000000 >>> bitPosIter)) == 0b00000000)
-                result = false;
-            else
-                result = true;
+            boolean result = (stream[bytePosIter] & (0b10000000 >>> bitPosIter)) != 0;
             if (++bitPosIter == SIZE){
                 bytePosIter++;
                 bitPosIter = 0;
@@ -46,10 +41,14 @@ public class Stream implements Iterable<Boolean> {
     }
 
     // number of bits in each byte
-    private final int SIZE = 8;
+    private static final int SIZE = 8;
+
+    // initial number of bytes reserved when no capacity hint is given
+    private static final int DEFAULT_CAPACITY = 16;
 
-    // store the bits in an array of bytes
-    private ArrayList<Byte> stream;
+    // store the bits in a growable array of bytes. Only the bytes up to
+    // bytePosition (inclusive) are in use, the others are kept at zero
+    private byte[] stream;
 
     // position of the last Bit available
     private int bitPosition;
@@ -65,15 +64,24 @@ public class Stream implements Iterable<Boolean> {
      * stream
      */
     public Stream() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty stream of bits able to hold capacity bytes
+     * (padding byte included) before growing its buffer.
+     *
+     * @param capacity expected number of bytes in the stream
+     */
+    public Stream(int capacity) {
         // extensible array of bytes
-        this.stream = new ArrayList<Byte>();
+        this.stream = new byte[Math.max(capacity, 1)];
 
         // prepare the first byte to cater the first bits
         // initial padding: 1 (1bit) + 7 (0bits) (0b10000000)
-        this.stream.add(Byte.valueOf((byte)0b10000000));
+        this.stream[0] = (byte) 0b10000000;
         this.bitPosition = 0;
         this.bytePosition = 0;
-
     }
 
     /**
@@ -82,20 +90,19 @@ public class Stream implements Iterable<Boolean> {
      * @param string build a stream from the bytes in this string
      */
     public Stream(String string) {
-        // extensible array of bytes
-        this.stream = new ArrayList<Byte>();
-
-        // prepare the first byte to cater the first bits
-        // initial padding: 1 (1bit) + 7 (0bits) (0b10000000)
-        this.stream.add(Byte.valueOf((byte)0b10000000));
-        this.bitPosition = 0;
-        this.bytePosition = 0;
+        this(string.getBytes());
+    }
 
-        //populate the stream with the bytes in the string
-        for (Byte b : string.getBytes()) {
-            this.addByte(b);
-        }
+    /**
+     * Create a stream using the bytes of the array.
+     *
+     * @param bytes build a stream from these bytes
+     */
+    public Stream(byte[] bytes) {
+        this(bytes.length + 1);
 
+        //populate the stream with the bytes
+        this.addBytes(bytes, 0, bytes.length);
     }
 
 
@@ -106,24 +113,51 @@ public class Stream implements Iterable<Boolean> {
      * @param bit the bit to add to the stream
      */
     public void addBit(boolean bit) {
-        Byte current = this.stream.get(bytePosition);
-        if (bit)
-            current = (byte) (current | (0b10000000 >>> this.bitPosition));
-        else
+        byte current = this.stream[bytePosition];
+        if (!bit)
             current = (byte) (current & ~(0b10000000 >>> this.bitPosition));
 
-        this.stream.set(bytePosition, current);
         // if the buffer is full, extend with one byte to hold the next bits
         if (++this.bitPosition == SIZE) {
-            this.stream.add(Byte.valueOf((byte)0b00000000));
-            this.bitPosition = 0;
-            this.bytePosition++;
+            this.stream[bytePosition] = current;
+            this.nextByte();
+            return;
         }
 
         // set the padding limit in the last byte
-        current = this.stream.get(bytePosition);
-        current = (byte) (current | (0b10000000 >>> this.bitPosition));
-        this.stream.set(bytePosition, current);
+        this.stream[bytePosition] = (byte) (current | (0b10000000 >>> this.bitPosition));
+    }
+
+    /**
+     * Add the count lowest bits of bits to the stream, the most significant
+     * one first, and set the last bit to 1 (padding limit).
+     * Whole bytes are written at once.
+     *
+     * @param bits the bits to add, right aligned
+     * @param count number of bits to add (0 to 64)
+     */
+    public void addBits(long bits, int count) {
+        if (count < 0 || count > 64) throw new IllegalArgumentException();
+
+        // remove the padding limit, the bits after it are zeros
+        int current = this.stream[bytePosition] & ~(0b10000000 >>> this.bitPosition) & 0xFF;
+
+        while (count > 0) {
+            int free = SIZE - this.bitPosition;
+            int n = Math.min(free, count);
+            count -= n;
+            int chunk = (int) (bits >>> count) & ((1 << n) - 1);
+            current |= chunk << (free - n);
+            this.bitPosition += n;
+            if (this.bitPosition == SIZE) {
+                this.stream[bytePosition] = (byte) current;
+                this.nextByte();
+                current = 0;
+            }
+        }
+
+        // set the padding limit in the last byte
+        this.stream[bytePosition] = (byte) (current | (0b10000000 >>> this.bitPosition));
     }
 
     /**
@@ -132,12 +166,98 @@ public class Stream implements Iterable<Boolean> {
      * @param code a byte
      */
     public void addByte(byte code) {
-        for (int i = 0; i < SIZE; i++) {
-            if ((code & (0b10000000 >>> i)) == 0)
-                this.addBit(false);
-            else
-                this.addBit(true);
+        this.addBits(code & 0xFF, SIZE);
+    }
+
+    /**
+     * Put the bits of length bytes of array, starting at offset, in the
+     * stream of bits. The bytes are copied directly when the stream is
+     * aligned on a byte.
+     *
+     * @param array bytes to add
+     * @param offset index of the first byte to add
+     * @param length number of bytes to add
+     */
+    public void addBytes(byte[] array, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > array.length)
+            throw new IndexOutOfBoundsException();
+
+        this.ensureCapacity(bytePosition + length + 1);
+
+        if (this.bitPosition == 0) {
+            System.arraycopy(array, offset, this.stream, bytePosition, length);
+            this.bytePosition += length;
+            this.stream[bytePosition] = (byte) 0b10000000;
+            return;
         }
+
+        // not aligned: each byte is split over two bytes of the stream
+        int shift = this.bitPosition;
+        int current = this.stream[bytePosition] & ~(0b10000000 >>> shift) & 0xFF;
+        for (int i = offset; i < offset + length; i++) {
+            int b = array[i] & 0xFF;
+            this.stream[bytePosition++] = (byte) (current | (b >>> shift));
+            current = (b << (SIZE - shift)) & 0xFF;
+        }
+        this.stream[bytePosition] = (byte) (current | (0b10000000 >>> shift));
+    }
+
+    /**
+     * Put all the bits of another stream (without its padding) in this stream
+     *
+     * @param other the stream to add
+     */
+    public void addStream(Stream other) {
+        // the last byte of other changes when other is this stream
+        int lastBits = other.bitPosition;
+        int last = (other.stream[other.bytePosition] & 0xFF) >>> (SIZE - lastBits);
+        this.addBytes(other.stream, 0, other.bytePosition);
+        this.addBits(last, lastBits);
+    }
+
+    /**
+     * Move to the next byte of the stream, growing the buffer if needed,
+     * and put the padding limit at its start.
+     */
+    private void nextByte() {
+        this.bitPosition = 0;
+        this.bytePosition++;
+        if (this.bytePosition == this.stream.length)
+            this.stream = Arrays.copyOf(this.stream, this.stream.length * 2);
+        this.stream[bytePosition] = (byte) 0b10000000;
+    }
+
+    /**
+     * Make sure the buffer can hold at least capacity bytes
+     *
+     * @param capacity number of bytes needed
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > this.stream.length)
+            this.stream = Arrays.copyOf(this.stream, Math.max(capacity, this.stream.length * 2));
+    }
+
+    /**
+     * Remove all the bits, the buffer is kept to be filled again without
+     * allocating (see HuffmanCodec)
+     */
+    public void clear() {
+        // the bytes after the padding byte are already zeros
+        Arrays.fill(this.stream, 1, this.bytePosition + 1, (byte) 0);
+        this.stream[0] = (byte) 0b10000000;
+        this.bitPosition = 0;
+        this.bytePosition = 0;
+    }
+
+    /**
+     * Take the bits written directly in the buffer of an empty stream: the
+     * bits, the padding limit, and zeros after it (see HuffmanCodec)
+     *
+     * @param numberOfBits number of bits written before the padding limit
+     */
+    void setNumberOfBits(int numberOfBits) {
+        this.bytePosition = numberOfBits / SIZE;
+        this.bitPosition = numberOfBits % SIZE;
     }
 
 
@@ -179,9 +299,9 @@ public class Stream implements Iterable<Boolean> {
      *      "0111110101010101"
      */
     public String toString() {
-        StringBuilder result = new StringBuilder("");
-        int thisBytePosition = 0;
-        for (Byte b : stream) {
+        StringBuilder result = new StringBuilder(this.numberOfBits() + 1);
+        for (int thisBytePosition = 0; thisBytePosition <= bytePosition; thisBytePosition++) {
+            byte b = this.stream[thisBytePosition];
             for (int i = 0; i < SIZE; i++) {
                 if (thisBytePosition == bytePosition && this.bitPosition == i){
                     result.append('1');
@@ -193,7 +313,6 @@ public class Stream implements Iterable<Boolean> {
                 else
                     result.append('1');
             }
-            thisBytePosition++;
         }
         return result.toString();
     }
@@ -207,23 +326,28 @@ public class Stream implements Iterable<Boolean> {
      */
     public static Stream reconstructStream(byte[] bytes) {
 
-        if (bytes == null || bytes.length == 0) throw new NullPointerException();
+        if (bytes == null) throw new NullPointerException();
+        return Stream.reconstructStream(bytes, bytes.length);
+    }
 
-        Stream result = new Stream();
+    /**
+     * Translate the first length bytes of an array into a stream,
+     * the last of them holding the padding limit
+     *
+     * @param bytes bytes to reconstruct
+     * @param length number of bytes of the stream (at least 1)
+     * @return constructed stream from the bytes without the last padding bits
+     */
+    static Stream reconstructStream(byte[] bytes, int length) {
 
-        for (int j = 0; j < bytes.length; j++) {
-            byte current = bytes[j];
-            int limit = 8;
-            if (j == bytes.length-1)
-                limit = getPaddingPosition(bytes[bytes.length-1]);
+        if (length == 0) throw new NullPointerException();
 
-            for (int i = 0; i < limit; i++){
-                if ((current & (0b10000000 >>> i)) == 0)
-                    result.addBit(false);
-                else
-                    result.addBit(true);
-            }
-        }
+        Stream result = new Stream(length);
+
+        // copy the whole bytes, then the bits of the last byte before the padding limit
+        int limit = getPaddingPosition(bytes[length-1]);
+        result.addBytes(bytes, 0, length - 1);
+        result.addBits((bytes[length-1] & 0xFF) >>> (SIZE - limit), limit);
         return result;
     }
 
@@ -245,7 +369,7 @@ public class Stream implements Iterable<Boolean> {
         while(limit > 0 && string.charAt(limit) == '0') limit--;
         if (limit == 0 && string.charAt(limit) != '1') throw new NullPointerException();
 
-        Stream result = new Stream();
+        Stream result = new Stream(limit / SIZE + 1);
         for (int i = 0; i < limit; i++ ) {
             if (string.charAt(i) == '0') result.addBit(false);
             else if (string.charAt(i) == '1')result.addBit(true);
@@ -263,12 +387,9 @@ public class Stream implements Iterable<Boolean> {
      * @param b determine the position of the right most '1'
      * @return the position of the right most '1', 0 to 7 from left to right
      */
-    private static int getPaddingPosition(byte b) {
-        int position = 0;
-        for (int i = 0; i < 8; i++) {
-            if ( (b & (0b10000000 >>> i)) != 0) position = i;
-        }
-        return position;
+    static int getPaddingPosition(byte b) {
+        if (b == 0) return 0;
+        return 7 - Integer.numberOfTrailingZeros(b);
     }
 
 
@@ -283,6 +404,16 @@ public class Stream implements Iterable<Boolean> {
         return this.bytePosition * SIZE + this.bitPosition;
     }
 
+    /**
+     * The array holding the bits of the stream, without copying it.
+     * Only the first size() bytes are used.
+     *
+     * @return the buffer of the stream
+     */
+    byte[] buffer() {
+        return this.stream;
+    }
+
     /**
      * number of bytes in the stream, including padding bits
      *
@@ -303,16 +434,7 @@ public class Stream implements Iterable<Boolean> {
      * @return all the bytes in the stream including padding bits
      */
     public byte[] getBytes(){
-
-        // size of the byte in the stream
-        int N = stream.size();
-
-        byte[] result = new byte[N];
-        for (int i = 0; i < N; i++) {
-            result[i] = stream.get(i);
-        }
-
-        return result;
+        return Arrays.copyOf(this.stream, this.size());
     }
 
 
@@ -332,12 +454,7 @@ public class Stream implements Iterable<Boolean> {
         if (this.getBitPosition() != 0) return null;
 
         // return the list of bytes without the last byte
-        // size of the byte in the stream
-        int N = stream.size();
-        byte[] result = new byte[N-1];
-        for (int i = 0; i<N-1; i++)
-            result[i] = stream.get(i);
-        return result;
+        return Arrays.copyOf(this.stream, this.bytePosition);
     }
 
 
@@ -350,23 +467,13 @@ public class Stream implements Iterable<Boolean> {
      */
     public String getAsString(){
 
-        // number of bytes in the stream
-        int N = stream.size();
-
-        // empty stream
-        if (N == 0) return null;
-
         // get last 1bit position in the last byte
-        int p = getPaddingPosition(stream.get(N-1));
+        int p = getPaddingPosition(this.stream[bytePosition]);
 
         // It was not created from a string
         if (p != 0) return null;
 
-        byte[] result = new byte[N-1];
-        for (int i = 0; i < N - 1; i++)
-            result[i] = stream.get(i);
-
-        return new String(result);
+        return new String(this.stream, 0, this.bytePosition);
     }
 
 
@@ -419,6 +526,24 @@ public class Stream implements Iterable<Boolean> {
             System.out.println(bit + "\t" + s); s.addBit(bit);
         }
 
+        //Check clearing: the buffer is kept and the stream is like a new one
+        System.out.println("\nCheck clearing");
+        s = new Stream();
+        for (int i = 0; i < 100; i++)
+            s.addBits(i, 7);
+        byte[] buffer = s.buffer();
+        s.clear();
+        assert(s.buffer() == buffer);
+        assert(s.equals(new Stream()) && s.numberOfBits() == 0);
+        for (int i = 0; i < 10; i++)
+            s.addBit(i % 3 == 0);
+        Stream fresh = new Stream();
+        for (int i = 0; i < 10; i++)
+            fresh.addBit(i % 3 == 0);
+        assert(s.equals(fresh));
+        for (int i = s.size(); i < buffer.length; i++)
+            assert(buffer[i] == 0);
+
         //Check String Characters Reconstruction
         System.out.println("\nCheck String Characters Reconstruction");
         s = new Stream();
@@ -459,6 +584,8 @@ public class Stream implements Iterable<Boolean> {
             String messageToCompressGSM = wholeMessage.substring(0, i);
             Stream compressedMessageGSM = Compression.compress(new Stream(messageToCompressGSM));
             String gsmEncoded = gsm.stringOfBitsTo7BitsAscii(compressedMessageGSM.toString());
+            assert(Ascii7bits.encode(compressedMessageGSM).equals(gsmEncoded));
+            assert(Ascii7bits.decode(gsmEncoded).equals(compressedMessageGSM));
             String reconstrucedStringFromGSM = gsm.Ascii7BitsStringToStreamOfBits(gsmEncoded);
             Stream reconstrucedStreamFromGSM = Stream.reconstructStream(reconstrucedStringFromGSM);
 
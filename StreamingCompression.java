@@ -0,0 +1,315 @@
+package com.simopr.smscompress.algorithms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compress data of any size (export files...) block by block, from an
+ * InputStream to an OutputStream, without holding the whole data in memory.
+ *
+ * The data is read in blocks of blockSize bytes, each block is coded with
+ * canonical codes (see CanonicalCode) and written as soon as it is coded.
+ * A block can reuse the codes of the previous block instead of sending its
+ * own header when it is not worth it, and a block that does not compress
+ * is stored as it is.
+ *
+ * Format:
+ *      magic "HUFB" + version                          (5bytes)
+ *      block size                                      (int)
+ *      blocks:
+ *          type                                        (1byte)
+ *          number of bytes of the block                (int)
+ *          number of bytes of the content              (int)
+ *          content                                     (variable)
+ *      END                                             (1byte)
+ *
+ * The content of a CODED block is the canonical header followed by the
+ * codes, the content of an INHERITED block only the codes (with the codes
+ * of the last CODED block), both as given by Stream.getBytes().
+ * The ints are big endian (DataOutputStream).
+ */
+public class StreamingCompression {
+
+    // number of bytes of a block by default
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+
+    // biggest block allowed, so that the memory of the decoder stays bounded
+    public static final int MAX_BLOCK_SIZE = 1 << 24;
+
+    private static final byte[] MAGIC = {'H', 'U', 'F', 'B'};
+    private static final int VERSION = 1;
+
+    // types of the blocks
+    private static final int END = 0;
+    private static final int STORED = 1;
+    private static final int CODED = 2;
+    private static final int INHERITED = 3;
+
+    /**
+     * Compress the data of in to out with blocks of DEFAULT_BLOCK_SIZE bytes.
+     * The streams are not closed.
+     *
+     * @param in the data to compress
+     * @param out where the compressed data is written
+     * @return number of bytes read from in
+     * @throws IOException if in or out fails
+     */
+    public static long compress(InputStream in, OutputStream out) throws IOException {
+        return StreamingCompression.compress(in, out, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Compress the data of in to out. The streams are not closed.
+     *
+     * @param in the data to compress
+     * @param out where the compressed data is written
+     * @param blockSize number of bytes of the blocks (1 to MAX_BLOCK_SIZE)
+     * @return number of bytes read from in
+     * @throws IOException if in or out fails
+     */
+    public static long compress(InputStream in, OutputStream out, int blockSize) throws IOException {
+        if (in == null || out == null) throw new NullPointerException();
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) throw new IllegalArgumentException();
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(blockSize);
+
+        // the only memory used, whatever the size of the data
+        byte[] block = new byte[blockSize];
+        int[] histogram = new int[Compression.HISTOGRAM_SIZE];
+
+        // codes of the last CODED block
+        CanonicalCode previous = null;
+        HuffmanEncoder previousEncoder = null;
+
+        long total = 0;
+        int length;
+        while ((length = readBlock(in, block)) > 0) {
+            total += length;
+            Compression.getHistogram(block, 0, length, histogram);
+
+            // the block with its own codes, or with the codes of the previous block
+            CanonicalCode code = CanonicalCode.fromHistogram(histogram, Compression.MAX_CODE_LENGTH);
+            long codedBits = LengthLimitedCode.cost(histogram, code.getLengths()) + code.headerBits();
+            long inheritedBits = previous == null ? Long.MAX_VALUE : inheritedCost(histogram, previous);
+
+            int type;
+            HuffmanEncoder encoder;
+            Stream content = new Stream(length + 1);
+            if (inheritedBits <= codedBits) {
+                type = INHERITED;
+                encoder = previousEncoder;
+            } else {
+                type = CODED;
+                code.writeHeader(content);
+                encoder = new HuffmanEncoder(code);
+            }
+            encoder.encode(block, 0, length, content);
+
+            byte[] bytes = content.getBytes();
+            if (bytes.length >= length) {
+                // the block does not compress, the decoder keeps the codes it has
+                data.writeByte(STORED);
+                data.writeInt(length);
+                data.writeInt(length);
+                data.write(block, 0, length);
+            } else {
+                data.writeByte(type);
+                data.writeInt(length);
+                data.writeInt(bytes.length);
+                data.write(bytes);
+                // the codes are the decoder's only once the CODED block is written
+                if (type == CODED) {
+                    previous = code;
+                    previousEncoder = encoder;
+                }
+            }
+        }
+
+        data.writeByte(END);
+        data.flush();
+        return total;
+    }
+
+    /**
+     * Decompress data compressed by compress() from in to out.
+     * The streams are not closed.
+     *
+     * @param in the compressed data
+     * @param out where the data is written
+     * @return number of bytes written to out
+     * @throws IOException if in or out fails, or if the data is corrupted
+     */
+    public static long decompress(InputStream in, OutputStream out) throws IOException {
+        if (in == null || out == null) throw new NullPointerException();
+
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC) || data.readUnsignedByte() != VERSION)
+            throw new IOException("not a compressed stream");
+
+        int blockSize = data.readInt();
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) throw new IOException("wrong block size");
+
+        // a block never needs more than blockSize bytes
+        byte[] content = new byte[blockSize];
+
+        // codes of the last CODED block
+        HuffmanDecoder previous = null;
+
+        long total = 0;
+        int type;
+        while ((type = data.readUnsignedByte()) != END) {
+            int length = data.readInt();
+            int contentLength = data.readInt();
+            if (length < 1 || length > blockSize || contentLength < 1 || contentLength > length)
+                throw new IOException("wrong block");
+            data.readFully(content, 0, contentLength);
+
+            if (type == STORED) {
+                if (contentLength != length) throw new IOException("wrong block");
+                out.write(content, 0, length);
+                total += length;
+                continue;
+            }
+            if (type != CODED && type != INHERITED) throw new IOException("wrong block type");
+            if (type == INHERITED && previous == null) throw new IOException("no codes to inherit");
+
+            Stream decoded = new Stream(length + 1);
+            try {
+                // the content is read in place, up to the padding limit of its last byte
+                int numberOfBits = (contentLength - 1) * 8 + Stream.getPaddingPosition(content[contentLength - 1]);
+                BitReader reader = new BitReader(content, 0, numberOfBits);
+                if (type == CODED)
+                    previous = new HuffmanDecoder(CanonicalCode.readHeader(reader).toTree());
+
+                previous.decode(reader, decoded);
+            } catch (RuntimeException e) {
+                throw new IOException("corrupted block", e);
+            }
+            if (decoded.getBitPosition() != 0 || decoded.getBytePosition() != length)
+                throw new IOException("corrupted block");
+
+            out.write(decoded.buffer(), 0, length);
+            total += length;
+        }
+        out.flush();
+        return total;
+    }
+
+    /**
+     * number of bits of the block coded with the codes of the previous block,
+     * Long.MAX_VALUE if a byte of the block has no code
+     */
+    private static long inheritedCost(int[] histogram, CanonicalCode previous) {
+        int[] lengths = previous.getLengths();
+        for (int c = 0; c < 256; c++)
+            if (histogram[c] != 0 && lengths[c] == 0) return Long.MAX_VALUE;
+        return LengthLimitedCode.cost(histogram, lengths);
+    }
+
+    /**
+     * Fill the block with the next bytes of in
+     *
+     * @return number of bytes read, less than the block only at the end of in
+     */
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int length = 0;
+        while (length < block.length) {
+            int read = in.read(block, length, block.length - length);
+            if (read < 0) break;
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Used for testing
+     * @param args used for testing
+     * @throws IOException never (in memory streams)
+     */
+    public static void main(String[] args) throws IOException {
+
+        Random random = new Random(42);
+        String[] words = {"bonjour", "le", "code", "est", "12345", "votre", "message", "السلام"};
+
+        // empty data
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        assert(compress(new ByteArrayInputStream(new byte[0]), compressed) == 0);
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        assert(decompress(new ByteArrayInputStream(compressed.toByteArray()), decompressed) == 0);
+
+        for (int testCases = 0; testCases < 50; testCases++) {
+            // text, then random bytes that do not compress, then text again
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            int size = random.nextInt(300000);
+            while (raw.size() < size) {
+                byte[] word = (words[random.nextInt(words.length)] + " ").getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                raw.write(word, 0, word.length);
+                if (random.nextInt(5000) == 0) {
+                    byte[] noise = new byte[random.nextInt(20000)];
+                    random.nextBytes(noise);
+                    raw.write(noise, 0, noise.length);
+                }
+            }
+            byte[] input = raw.toByteArray();
+            int blockSize = 1 + random.nextInt(70000);
+
+            compressed = new ByteArrayOutputStream();
+            assert(compress(new ByteArrayInputStream(input), compressed, blockSize) == input.length);
+
+            decompressed = new ByteArrayOutputStream();
+            assert(decompress(new ByteArrayInputStream(compressed.toByteArray()), decompressed) == input.length);
+            assert(Arrays.equals(decompressed.toByteArray(), input));
+
+            // a truncated stream is an error
+            byte[] truncated = Arrays.copyOf(compressed.toByteArray(), compressed.size() - 1);
+            try {
+                decompress(new ByteArrayInputStream(truncated), new ByteArrayOutputStream());
+                assert(false);
+            } catch (EOFException e) {
+                // expected
+            }
+
+            if (testCases == 0)
+                System.out.println(input.length + " bytes compressed in " + compressed.size() + " bytes");
+        }
+
+        // small blocks of a small alphabet: a CODED block often ends up STORED,
+        // and the next INHERITED block must use the codes the decoder has
+        for (int testCases = 0; testCases < 2000; testCases++) {
+            int blockSize = 1 + random.nextInt(64);
+            byte[] input = new byte[random.nextInt(400)];
+            int alphabet = 1 + random.nextInt(6);
+            for (int i = 0; i < input.length; i++)
+                input[i] = (byte) ('a' + random.nextInt(alphabet) * random.nextInt(alphabet) / alphabet);
+
+            compressed = new ByteArrayOutputStream();
+            assert(compress(new ByteArrayInputStream(input), compressed, blockSize) == input.length);
+            decompressed = new ByteArrayOutputStream();
+            assert(decompress(new ByteArrayInputStream(compressed.toByteArray()), decompressed) == input.length);
+            assert(Arrays.equals(decompressed.toByteArray(), input));
+        }
+        for (int[] sizes : new int[][]{{13, 288}, {52, 112}, {2, 240}}) {
+            byte[] input = new byte[sizes[1]];
+            for (int i = 0; i < input.length; i++)
+                input[i] = (byte) ('a' + random.nextInt(3));
+            compressed = new ByteArrayOutputStream();
+            compress(new ByteArrayInputStream(input), compressed, sizes[0]);
+            decompressed = new ByteArrayOutputStream();
+            decompress(new ByteArrayInputStream(compressed.toByteArray()), decompressed);
+            assert(Arrays.equals(decompressed.toByteArray(), input));
+        }
+    }
+}
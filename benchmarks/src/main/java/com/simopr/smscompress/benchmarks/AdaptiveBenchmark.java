@@ -0,0 +1,83 @@
+package com.simopr.smscompress.benchmarks;
+
+import com.simopr.smscompress.algorithms.Compression;
+import com.simopr.smscompress.algorithms.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode latency of the opt-in FORMAT_ADAPTIVE against the
+ * FORMAT_TRIE path, on the 20-80 bytes messages where it sends fewer bits
+ * (see AdaptiveHuffman.main for the sizes)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdaptiveBenchmark {
+
+    @Param({"20", "50", "80"})
+    public int length;
+
+    @Param({Messages.ASCII, Messages.ARABIC})
+    public String alphabet;
+
+    // FORMAT_TRIE or FORMAT_ADAPTIVE
+    @Param({"0", "3"})
+    public int format;
+
+    private Stream message;
+    private Stream compressed;
+
+    private ByteBuffer messageBuffer;
+    private ByteBuffer compressedBuffer;
+    private ByteBuffer output;
+
+    @Setup
+    public void setup() {
+        byte[] bytes = Messages.create(this.alphabet, this.length, 42);
+        this.message = new Stream(bytes);
+        this.compressed = Compression.compress(this.message, this.format);
+
+        this.messageBuffer = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        byte[] compressedBytes = this.compressed.getBytes();
+        this.compressedBuffer = ByteBuffer.allocateDirect(compressedBytes.length).put(compressedBytes).flip();
+        this.output = ByteBuffer.allocateDirect(Math.max(bytes.length, compressedBytes.length));
+    }
+
+    @Benchmark
+    public Stream encode() {
+        return Compression.compress(this.message, this.format);
+    }
+
+    @Benchmark
+    public Stream decode() {
+        return Compression.decompress(this.compressed);
+    }
+
+    @Benchmark
+    public int encodeBuffer() {
+        this.output.clear();
+        return Compression.compress(this.messageBuffer.rewind(), this.output, this.format);
+    }
+
+    @Benchmark
+    public int decodeBuffer() {
+        this.output.clear();
+        return Compression.decompress(this.compressedBuffer.rewind(), this.output);
+    }
+}
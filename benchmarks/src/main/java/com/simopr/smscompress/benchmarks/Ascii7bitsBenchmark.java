@@ -0,0 +1,60 @@
+package com.simopr.smscompress.benchmarks;
+
+import com.simopr.smscompress.algorithms.Ascii7bits;
+import com.simopr.smscompress.algorithms.Compression;
+import com.simopr.smscompress.algorithms.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translation of a compressed message to 7 bits characters and back
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Ascii7bitsBenchmark {
+
+    @Param({"10", "160", "1024", "65536"})
+    public int length;
+
+    @Param({Messages.ASCII, Messages.ARABIC, Messages.RANDOM})
+    public String alphabet;
+
+    private Stream compressed;
+    private String text;
+
+    @Setup
+    public void setup() {
+        this.compressed = Compression.compress(new Stream(Messages.create(this.alphabet, this.length, 42)));
+        this.text = Ascii7bits.encode(this.compressed);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Ascii7bits.encode(this.compressed);
+    }
+
+    @Benchmark
+    public Stream decode() {
+        return Ascii7bits.decode(this.text);
+    }
+
+    @Benchmark
+    public int gsmSeptets() {
+        return Ascii7bits.gsmSeptets(this.text);
+    }
+}
@@ -0,0 +1,79 @@
+package com.simopr.smscompress.benchmarks;
+
+import com.simopr.smscompress.algorithms.BatchCompression;
+import com.simopr.smscompress.algorithms.Compression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch of messages compressed and decompressed by a number of threads
+ * (see BatchCompression). The other benchmarks can also be run on several
+ * threads with the -t option of JMH.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+
+    // number of messages of a batch
+    private static final int BATCH = 4096;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"160", "1024"})
+    public int length;
+
+    @Param({Messages.ASCII, Messages.ARABIC, Messages.RANDOM})
+    public String alphabet;
+
+    private ForkJoinPool pool;
+    private BatchCompression batch;
+    private List<byte[]> messages;
+    private List<byte[]> compressed;
+
+    @Setup
+    public void setup() {
+        this.pool = new ForkJoinPool(this.threads);
+        this.batch = new BatchCompression(this.pool, Compression.FORMAT_CANONICAL);
+        this.messages = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++)
+            this.messages.add(Messages.create(this.alphabet, this.length, i));
+        this.compressed = new ArrayList<>(BATCH);
+        for (BatchCompression.Result result : this.batch.compressBatch(this.messages))
+            this.compressed.add(result.getBytes());
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    @Benchmark
+    public List<BatchCompression.Result> compressBatch() {
+        return this.batch.compressBatch(this.messages);
+    }
+
+    @Benchmark
+    public List<BatchCompression.Result> decompressBatch() {
+        return this.batch.decompressBatch(this.compressed);
+    }
+}
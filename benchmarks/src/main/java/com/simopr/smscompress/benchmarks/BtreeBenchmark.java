@@ -0,0 +1,75 @@
+package com.simopr.smscompress.benchmarks;
+
+import com.simopr.smscompress.algorithms.Btree;
+import com.simopr.smscompress.algorithms.Compression;
+import com.simopr.smscompress.algorithms.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of the trie from the frequencies, and from its bits
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BtreeBenchmark {
+
+    @Param({"10", "160", "1024", "65536"})
+    public int length;
+
+    @Param({Messages.ASCII, Messages.ARABIC, Messages.RANDOM})
+    public String alphabet;
+
+    private byte[] message;
+    private int[] histogram;
+    // N and the trie, as sent in a compressed message
+    private Stream trie;
+
+    @Setup
+    public void setup() {
+        this.message = Messages.create(this.alphabet, this.length, 42);
+        this.histogram = Compression.getHistogram(this.message);
+
+        // the header of a compressed message: N (8 bits) then the trie
+        int n = 0;
+        for (int c = 0; c < 256; c++)
+            if (this.histogram[c] != 0) n++;
+        this.trie = new Stream();
+        this.trie.addBits(n & 0xFF, 8);
+        this.trie.addStream(new Btree(this.histogram).writeTrie());
+    }
+
+    @Benchmark
+    public int[] histogram() {
+        return Compression.getHistogram(this.message);
+    }
+
+    @Benchmark
+    public Btree build() {
+        return new Btree(this.histogram);
+    }
+
+    @Benchmark
+    public Stream writeTrie() {
+        return new Btree(this.histogram).writeTrie();
+    }
+
+    @Benchmark
+    public Btree readTrie() {
+        return new Btree(this.trie);
+    }
+}
@@ -0,0 +1,96 @@
+package com.simopr.smscompress.benchmarks;
+
+import com.simopr.smscompress.algorithms.Compression;
+import com.simopr.smscompress.algorithms.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression.compress, decompress and checkDecompressible of one message,
+ * with Streams and with direct ByteBuffers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"10", "160", "1024", "65536"})
+    public int length;
+
+    @Param({Messages.ASCII, Messages.ARABIC, Messages.RANDOM})
+    public String alphabet;
+
+    @Param({"0", "1", "2", "3"})
+    public int format;
+
+    private Stream message;
+    private Stream compressed;
+
+    private ByteBuffer messageBuffer;
+    private ByteBuffer compressedBuffer;
+    private ByteBuffer output;
+
+    @Setup
+    public void setup() {
+        byte[] bytes = Messages.create(this.alphabet, this.length, 42);
+        this.message = new Stream(bytes);
+        this.compressed = Compression.compress(this.message, this.format);
+
+        this.messageBuffer = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        byte[] compressedBytes = this.compressed.getBytes();
+        this.compressedBuffer = ByteBuffer.allocateDirect(compressedBytes.length).put(compressedBytes).flip();
+        this.output = ByteBuffer.allocateDirect(Math.max(bytes.length, compressedBytes.length));
+    }
+
+    @Benchmark
+    public Stream compress() {
+        return Compression.compress(this.message, this.format);
+    }
+
+    @Benchmark
+    public Stream decompress() {
+        return Compression.decompress(this.compressed);
+    }
+
+    @Benchmark
+    public int compressBuffer() {
+        this.output.clear();
+        return Compression.compress(this.messageBuffer.rewind(), this.output, this.format);
+    }
+
+    @Benchmark
+    public Stream decompressFromBuffer() {
+        return Compression.decompress(this.compressedBuffer.rewind());
+    }
+
+    @Benchmark
+    public int decompressBuffer() {
+        this.output.clear();
+        return Compression.decompress(this.compressedBuffer.rewind(), this.output);
+    }
+
+    @Benchmark
+    public boolean checkCompressed() {
+        return Compression.checkDecompressible(this.compressed);
+    }
+
+    @Benchmark
+    public boolean checkPlain() {
+        return Compression.checkDecompressible(this.message);
+    }
+}
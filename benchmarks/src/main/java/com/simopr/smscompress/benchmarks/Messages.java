@@ -0,0 +1,55 @@
+package com.simopr.smscompress.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Messages of the benchmarks, the same for every run (fixed seed)
+ */
+final class Messages {
+
+    // latin text with the frequencies of an SMS
+    static final String ASCII = "ASCII";
+    // arabic letters in UTF-8, 2 bytes per letter
+    static final String ARABIC = "ARABIC";
+    // bytes of any value, the worst case of the compression
+    static final String RANDOM = "RANDOM";
+
+    private static final String LATIN_LETTERS = "eeeeeeaaaaiiiinnnsssrrrtttoooluudcmp   ,.EAhgbfvqjxyzk0123456789";
+    private static final String ARABIC_LETTERS = "اااللليييممنننووهرتبعكفقسدذحجخشصضطظغءئ  ";
+
+    private Messages() {
+    }
+
+    /**
+     * A message of length bytes
+     *
+     * @param alphabet ASCII, ARABIC or RANDOM
+     * @param length number of bytes
+     * @param seed seed of the random letters
+     * @return the bytes of the message
+     */
+    static byte[] create(String alphabet, int length, long seed) {
+        Random random = new Random(seed);
+        byte[] message = new byte[length];
+        if (RANDOM.equals(alphabet)) {
+            random.nextBytes(message);
+            return message;
+        }
+
+        String letters;
+        if (ASCII.equals(alphabet)) letters = LATIN_LETTERS;
+        else if (ARABIC.equals(alphabet)) letters = ARABIC_LETTERS;
+        else throw new IllegalArgumentException(alphabet);
+
+        int i = 0;
+        while (i < length) {
+            char c = letters.charAt(random.nextInt(letters.length()));
+            byte[] bytes = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+            // a letter cut at the end is replaced with spaces
+            for (int j = 0; j < bytes.length && i < length; j++, i++)
+                message[i] = i + bytes.length - j <= length ? bytes[j] : (byte) ' ';
+        }
+        return message;
+    }
+}
@@ -0,0 +1,65 @@
+package com.simopr.smscompress.benchmarks;
+
+import com.simopr.smscompress.algorithms.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the bits of a message in a Stream, and rebuilding a Stream from its bytes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+
+    @Param({"10", "160", "1024", "65536"})
+    public int length;
+
+    @Param({Messages.ASCII, Messages.ARABIC, Messages.RANDOM})
+    public String alphabet;
+
+    private byte[] message;
+    private byte[] streamBytes;
+
+    @Setup
+    public void setup() {
+        this.message = Messages.create(this.alphabet, this.length, 42);
+        this.streamBytes = new Stream(this.message).getBytes();
+    }
+
+    @Benchmark
+    public Stream addBit() {
+        Stream stream = new Stream();
+        for (byte b : this.message)
+            for (int i = 7; i >= 0; i--)
+                stream.addBit(((b >>> i) & 1) != 0);
+        return stream;
+    }
+
+    @Benchmark
+    public Stream addByte() {
+        Stream stream = new Stream();
+        for (byte b : this.message)
+            stream.addByte(b);
+        return stream;
+    }
+
+    @Benchmark
+    public Stream reconstructStream() {
+        return Stream.reconstructStream(this.streamBytes);
+    }
+}